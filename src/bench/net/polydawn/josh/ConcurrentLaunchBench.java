@@ -0,0 +1,43 @@
+package net.polydawn.josh;
+
+import java.util.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Launches a few hundred `true`s via {@link Josh#runAll}, at most {@link #parallelism}
+ * at once, and reports the time per launch. At 1 this is plain serial launch latency;
+ * higher up it's how well launching scales with cores (and where it stops scaling).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@OperationsPerInvocation(ConcurrentLaunchBench.launches)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConcurrentLaunchBench {
+	@Param({ "1", "16", "256" })
+	public int parallelism;
+
+	static final int launches = 256;
+
+	private List<Josh> batch;
+
+	@Setup
+	public void setup() {
+		Josh tru = new Josh("true").opts(Opts.NullIO);
+		batch = Collections.nCopies(launches, tru);
+	}
+
+	@Benchmark
+	public int launch() throws Exception {
+		int ok = 0;
+		for (Batch.Result result : Josh.runAll(batch, parallelism).get())
+			if (result.ok())
+				ok++;
+		if (ok != launches)
+			throw new IllegalStateException((launches - ok)+" of "+launches+" launches failed");
+		return ok;
+	}
+}
@@ -0,0 +1,37 @@
+package net.polydawn.josh;
+
+import java.io.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Stdout throughput through the io copier: a child spews zeros, a copier thread
+ * shuttles them into an output stream that throws them away. Divide {@link #size} by
+ * the time per op for bytes per second.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CopierBench {
+	@Param({ "1048576", "67108864" })
+	public long size;
+
+	private Josh gen;
+
+	@Setup
+	public void setup() {
+		OutputStream discard = new OutputStream() {
+			public void write(int b) {}
+			public void write(byte[] b, int off, int len) {}
+		};
+		gen = new Josh("head").args("-c", Long.toString(size), "/dev/zero").opts(new Opts().in_null().out(discard));
+	}
+
+	@Benchmark
+	public int stdout() throws Exception {
+		return gen.start().get();
+	}
+}
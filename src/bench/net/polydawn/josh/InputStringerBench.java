@@ -0,0 +1,45 @@
+package net.polydawn.josh;
+
+import java.util.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * How fast {@link Opts.InputStringer} turns a queue of strings into bytes, read in the
+ * 8k gulps a copier would take. Each op feeds a meg, in strings of the given length.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class InputStringerBench {
+	@Param({ "8", "80", "1024", "65536" })
+	public int lineLength;
+
+	static final int total = 1024*1024;
+
+	private List<String> lines;
+	private final byte[] buf = new byte[8192];
+
+	@Setup
+	public void setup() {
+		char[] line = new char[lineLength];
+		Arrays.fill(line, 'a');
+		line[lineLength - 1] = '\n';
+		String s = new String(line);
+		lines = new ArrayList<String>(total / lineLength);
+		for (int n = 0; n < total / lineLength; n++)
+			lines.add(s);
+	}
+
+	@Benchmark
+	public long feed() throws Exception {
+		Opts.InputStringer stringer = new Opts.InputStringer(new ArrayDeque<String>(lines));
+		long read = 0;
+		for (int n; (n = stringer.read(buf, 0, buf.length)) != -1;)
+			read += n;
+		return read;
+	}
+}
@@ -0,0 +1,46 @@
+package net.polydawn.josh;
+
+import java.util.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Line splitting in {@link Opts.OutputStringer}: a meg of lines of a given length,
+ * written in the 8k chunks a copier would hand over, so lines regularly straddle
+ * writes. No process involved.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class OutputStringerBench {
+	@Param({ "8", "80", "1024", "65536" })
+	public int lineLength;
+
+	static final int total = 1024*1024;
+	static final int chunk = 8192;
+
+	private byte[] input;
+	private List<String> sink;
+
+	@Setup
+	public void setup() {
+		input = new byte[total];
+		Arrays.fill(input, (byte) 'a');
+		for (int i = lineLength - 1; i < total; i += lineLength)
+			input[i] = '\n';
+		sink = new ArrayList<String>(total / lineLength + 1);
+	}
+
+	@Benchmark
+	public int split() throws Exception {
+		sink.clear();
+		Opts.OutputStringer stringer = new Opts.OutputStringer(sink);
+		for (int off = 0; off < total; off += chunk)
+			stringer.write(input, off, Math.min(chunk, total - off));
+		stringer.close();
+		return sink.size();
+	}
+}
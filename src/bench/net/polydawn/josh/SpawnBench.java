@@ -0,0 +1,45 @@
+package net.polydawn.josh;
+
+import java.io.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * How long it takes to launch `true` and see it exit, with a few io setups.
+ * <p>
+ * NullIO never touches a pipe; DirectIO hands the child our own descriptors; Piped
+ * gets pipes for stdout and stderr with a copier on each, and that's the difference
+ * this is here to keep an eye on. (Stdin stays null for all of them: a stdin copier
+ * would be reading the benchmark JVM's own stdin, which may never end.)
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SpawnBench {
+	@Param({ "NullIO", "DirectIO", "Piped" })
+	public String io;
+
+	private Josh tru;
+
+	private static final OutputStream discard = new OutputStream() {
+		public void write(int b) {}
+		public void write(byte[] b, int off, int len) {}
+	};
+
+	@Setup
+	public void setup() {
+		switch (io) {
+			case "NullIO":   tru = new Josh("true").opts(Opts.NullIO); break;
+			case "DirectIO": tru = new Josh("true").opts(Opts.DirectIO); break;
+			default:         tru = new Josh("true").opts(new Opts().in_null().out(discard).err(discard)); break;
+		}
+	}
+
+	@Benchmark
+	public int spawn() throws Exception {
+		return tru.start().get();
+	}
+}
@@ -0,0 +1,242 @@
+/*
+ * This file is part of josh <https://github.com/polydawn/josh/>.
+ *
+ * josh is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.polydawn.josh;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+/**
+ * Runs a pile of commands with a bound on how many are in flight at once. Made by
+ * {@link Josh#runAll(Collection, int, boolean)}.
+ * <p>
+ * Each command is launched as soon as a slot frees up; nobody sits in a loop on
+ * {@code start().get()}, so the fork latency of one command overlaps with the running
+ * time of the others. The launches themselves are handed off to each command's
+ * {@link Josh#executor(Executor) executor}, so with several slots free at once
+ * (like right at the start) they fork in parallel instead of one after another.
+ */
+public class Batch {
+	Batch(Collection<Josh> cmds, int maxConcurrent, boolean failFast) {
+		if (maxConcurrent < 1)
+			throw new IllegalArgumentException("maxConcurrent must be at least 1");
+		this.cmds = new ArrayList<Josh>(cmds);
+		this.maxConcurrent = maxConcurrent;
+		this.failFast = failFast;
+		this.results = new Result[this.cmds.size()];
+		this.contextCwd = WithCwd.current();
+	}
+
+	private final List<Josh> cmds;
+	private final int maxConcurrent;
+	private final boolean failFast;
+	private final Result[] results; // guarded by this
+	private final CompletableFuture<List<Result>> done = new CompletableFuture<List<Result>>();
+	private long begun;
+
+	/** launches happen on whatever thread, so hang on to the cwd of the one that asked. */
+	private final File contextCwd;
+
+	// guarded by this
+	private int next;
+	private int running;
+	private boolean failed;
+
+	/** keeps pump from recursing when a launch can't even be handed off and gets recorded right there. */
+	private final AtomicInteger wip = new AtomicInteger();
+
+	CompletableFuture<List<Result>> run() {
+		begun = System.nanoTime();
+		pump();
+		return done;
+	}
+
+	private void pump() {
+		if (wip.getAndIncrement() != 0)
+			return;
+		int missed = 1;
+		do {
+			while (true) {
+				int i;
+				synchronized (this) {
+					if (running >= maxConcurrent)
+						break;
+					if (next >= cmds.size() || (failFast && failed)) {
+						if (running == 0)
+							finish();
+						break;
+					}
+					i = next++;
+					running++;
+				}
+				dispatch(i);
+			}
+			missed = wip.addAndGet(-missed);
+		} while (missed != 0);
+	}
+
+	/**
+	 * Hands launching command {@code i} off to its executor.  Forking is slow enough
+	 * that doing a slot's worth of them in a row here would be most of the batch's
+	 * latency.
+	 */
+	private void dispatch(final int i) {
+		final Josh cmd = cmds.get(i);
+		try {
+			cmd.executor().execute(new Runnable() {
+				public void run() {
+					launch(i);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			record(i, new Result(cmd, true, null, e, System.nanoTime()-begun, 0));
+		}
+	}
+
+	private void launch(final int i) {
+		final Josh cmd = cmds.get(i);
+		final long launched = System.nanoTime();
+		CompletableFuture<ExecutionResult> exit;
+		try {
+			exit = cmd.execute(contextCwd);
+		} catch (IOException | RuntimeException e) {
+			// unchecked too: a null arg, a forkserver asked for something it can't do, etc.  anything that escapes here would leave the batch hanging forever.
+			record(i, new Result(cmd, true, null, e, launched-begun, System.nanoTime()-launched));
+			return;
+		}
+		exit.whenComplete(new BiConsumer<ExecutionResult,Throwable>() {
+			public void accept(ExecutionResult execution, Throwable t) {
+				long elapsed = System.nanoTime()-launched;
+				if (t instanceof CompletionException && t.getCause() != null)
+					t = t.getCause();
+				if (t instanceof ExitStatusException)
+					execution = ((ExitStatusException)t).result();
+				record(i, new Result(cmd, true, execution, t, launched-begun, elapsed));
+			}
+		});
+	}
+
+	private void record(int i, Result result) {
+		synchronized (this) {
+			results[i] = result;
+			running--;
+			if (!result.ok())
+				failed = true;
+		}
+		pump();
+	}
+
+	private void finish() { // holding this
+		List<Result> list = new ArrayList<Result>(results.length);
+		for (int i = 0; i < results.length; i++)
+			list.add(results[i] != null ? results[i] : new Result(cmds.get(i), false, null, null, 0, 0));
+		final List<Result> all = Collections.unmodifiableList(list);
+		// whatever's chained on the batch gets the asker's cwd too, same as with a single start().
+		WithCwd.in(contextCwd, new Runnable() {
+			public void run() {
+				done.complete(all);
+			}
+		});
+	}
+
+
+
+	/**
+	 * How one command in a batch went.
+	 */
+	public static class Result {
+		Result(Josh josh, boolean launched, ExecutionResult execution, Throwable failure, long queuedNanos, long elapsedNanos) {
+			this.josh = josh;
+			this.launched = launched;
+			this.execution = execution;
+			this.failure = failure;
+			this.queuedNanos = queuedNanos;
+			this.elapsedNanos = elapsedNanos;
+		}
+
+		private final Josh josh;
+		private final boolean launched;
+		private final ExecutionResult execution;
+		private final Throwable failure;
+		private final long queuedNanos;
+		private final long elapsedNanos;
+
+		public Josh josh() {
+			return josh;
+		}
+
+		/**
+		 * False only for commands a fail-fast batch gave up on before getting to them.
+		 */
+		public boolean launched() {
+			return launched;
+		}
+
+		/**
+		 * @return the exit code, or null if the process never got as far as exiting
+		 *         (it couldn't be launched, or it never was).
+		 */
+		public Integer exitCode() {
+			return execution == null ? null : execution.exitCode();
+		}
+
+		/**
+		 * @return the details of how the process went (same caveat as
+		 *         {@link #exitCode()}: null if it never got that far).
+		 */
+		public ExecutionResult execution() {
+			return execution;
+		}
+
+		/**
+		 * @return null if it went fine; otherwise, whatever it was that went wrong. An
+		 *         {@link ExitStatusException} if the exit code wasn't ok; a
+		 *         {@link TimeoutException} or {@link CancellationException} if it was
+		 *         given up on; an {@link IOException} or any other exception thrown by
+		 *         the launch itself (a {@link RejectedExecutionException} if the
+		 *         command's executor wouldn't take it); and so on.
+		 */
+		public Throwable failure() {
+			return failure;
+		}
+
+		/**
+		 * @return true if the command ran and exited with an ok code.
+		 */
+		public boolean ok() {
+			return launched && failure == null;
+		}
+
+		/**
+		 * @return nanoseconds between the batch starting and this command being launched.
+		 */
+		public long queuedNanos() {
+			return queuedNanos;
+		}
+
+		/**
+		 * @return nanoseconds from launching this command to it exiting with all its
+		 *         output shuttled.
+		 */
+		public long elapsedNanos() {
+			return elapsedNanos;
+		}
+	}
+}
@@ -0,0 +1,85 @@
+/*
+ * This file is part of josh <https://github.com/polydawn/josh/>.
+ *
+ * josh is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.polydawn.josh;
+
+import java.util.concurrent.*;
+
+/**
+ * Recycles the byte arrays that the io copiers shuttle through, so launching a
+ * process doesn't cost a fresh buffer per stream.
+ * <p>
+ * Buffers come in power-of-two sizes between {@link #min} and {@link #max}
+ * (configurable with the {@code net.polydawn.josh.buffer.min} and
+ * {@code net.polydawn.josh.buffer.max} system properties; 8KB and 1MB by default).
+ * Each size keeps a bounded number of spares; anything returned past that is left
+ * for the GC. Acquiring and releasing don't allocate once the pool is warm.
+ */
+final class BufferPool {
+	private BufferPool() {}
+
+	static final int min = roundUp(Integer.getInteger("net.polydawn.josh.buffer.min", 1024*8));
+	static final int max = Math.max(min, roundUp(Integer.getInteger("net.polydawn.josh.buffer.max", 1024*1024)));
+
+	/** How many idle bytes each size class may hoard. */
+	private static final int spareBytes = 1024*1024*4;
+
+	private static final BlockingQueue<byte[]>[] spares = makeSpares();
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static BlockingQueue<byte[]>[] makeSpares() {
+		BlockingQueue<byte[]>[] spares = new BlockingQueue[slot(max)+1];
+		for (int i = 0; i < spares.length; i++)
+			spares[i] = new ArrayBlockingQueue<byte[]>(Math.max(1, spareBytes / (min << i)));
+		return spares;
+	}
+
+	/**
+	 * @return a buffer of at least {@code size} bytes (clamped to {@link #min} and
+	 *         {@link #max}). Contents are garbage.
+	 */
+	static byte[] acquire(int size) {
+		size = Math.min(max, Math.max(min, roundUp(size)));
+		byte[] buf = spares[slot(size)].poll();
+		return buf != null ? buf : new byte[size];
+	}
+
+	/**
+	 * @return a buffer twice the size of {@code buf} (or {@code buf} itself if it's
+	 *         already {@link #max}), having released {@code buf} if it was replaced.
+	 */
+	static byte[] grow(byte[] buf) {
+		if (buf.length >= max)
+			return buf;
+		release(buf);
+		return acquire(buf.length*2);
+	}
+
+	static void release(byte[] buf) {
+		if (buf == null || buf.length < min || buf.length > max || Integer.bitCount(buf.length) != 1)
+			return;
+		spares[slot(buf.length)].offer(buf);
+	}
+
+	private static int slot(int size) {
+		return Integer.numberOfTrailingZeros(size) - Integer.numberOfTrailingZeros(min);
+	}
+
+	private static int roundUp(int size) {
+		return size <= 1 ? 1 : Integer.highestOneBit(size-1) << 1;
+	}
+}
@@ -0,0 +1,113 @@
+/*
+ * This file is part of josh <https://github.com/polydawn/josh/>.
+ *
+ * josh is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.polydawn.josh;
+
+/**
+ * How a process went: exit code, and what it cost. Returned by {@link Josh#execute()},
+ * and carried by {@link ExitStatusException} when the exit code wasn't ok.
+ * <p>
+ * Times are in nanoseconds, measured from just before the launch. Byte counts are of
+ * what passed through the JVM; a stream that was redirected straight to a file (or
+ * inherited, etc) never did, and reports -1.
+ */
+public class ExecutionResult {
+	ExecutionResult(String cmd, int exitCode, long pid, long launchNanos, long firstByteNanos, long runtimeNanos, long bytesIn, long bytesOut, long bytesErr, long cpuNanos) {
+		this.cmd = cmd;
+		this.exitCode = exitCode;
+		this.pid = pid;
+		this.launchNanos = launchNanos;
+		this.firstByteNanos = firstByteNanos;
+		this.runtimeNanos = runtimeNanos;
+		this.bytesIn = bytesIn;
+		this.bytesOut = bytesOut;
+		this.bytesErr = bytesErr;
+		this.cpuNanos = cpuNanos;
+	}
+
+	private final String cmd;
+	private final int exitCode;
+	private final long pid;
+	private final long launchNanos;
+	private final long firstByteNanos;
+	private final long runtimeNanos;
+	private final long bytesIn;
+	private final long bytesOut;
+	private final long bytesErr;
+	private final long cpuNanos;
+
+	public String cmd() {
+		return cmd;
+	}
+
+	public int exitCode() {
+		return exitCode;
+	}
+
+	public long pid() {
+		return pid;
+	}
+
+	/**
+	 * @return how long the launch itself took (fork, exec, and the JVM's bookkeeping).
+	 */
+	public long launchNanos() {
+		return launchNanos;
+	}
+
+	/**
+	 * @return when the first byte of output (stdout or stderr) arrived, or -1 if none
+	 *         ever did.
+	 */
+	public long firstByteNanos() {
+		return firstByteNanos;
+	}
+
+	/**
+	 * @return when the process had exited and all its output had been shuttled.
+	 */
+	public long runtimeNanos() {
+		return runtimeNanos;
+	}
+
+	public long bytesIn() {
+		return bytesIn;
+	}
+
+	public long bytesOut() {
+		return bytesOut;
+	}
+
+	public long bytesErr() {
+		return bytesErr;
+	}
+
+	/**
+	 * Best effort: the OS only tells us a process's CPU time while it's still around,
+	 * so we ask when its output runs out, which is usually the moment it exits. If it
+	 * had no output going through the JVM, or the OS won't say, this is -1.
+	 *
+	 * @return user plus system CPU time, or -1.
+	 */
+	public long cpuNanos() {
+		return cpuNanos;
+	}
+
+	public String toString() {
+		return "\""+cmd+"\" (pid "+pid+") exited "+exitCode+" after "+(runtimeNanos/1000000)+"ms";
+	}
+}
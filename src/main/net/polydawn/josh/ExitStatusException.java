@@ -0,0 +1,44 @@
+/*
+ * This file is part of josh <https://github.com/polydawn/josh/>.
+ *
+ * josh is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.polydawn.josh;
+
+import java.util.concurrent.*;
+
+/**
+ * A process exited with a code that isn't one of its {@link Josh#okExit(Integer...) ok} ones.
+ * Still an {@link ExecutionException}, like it always was, but now you can get at the
+ * code (and the rest of the {@link ExecutionResult}) without parsing the message.
+ */
+public class ExitStatusException extends ExecutionException {
+	ExitStatusException(ExecutionResult result) {
+		super("executing \""+result.cmd()+"\" returned code "+result.exitCode(), null);
+		this.result = result;
+	}
+
+	private final ExecutionResult result;
+
+	public ExecutionResult result() {
+		return result;
+	}
+
+	public int exitCode() {
+		return result.exitCode();
+	}
+
+	private static final long serialVersionUID = 1L;
+}
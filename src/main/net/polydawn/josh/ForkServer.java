@@ -0,0 +1,455 @@
+/*
+ * This file is part of josh <https://github.com/polydawn/josh/>.
+ *
+ * josh is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.polydawn.josh;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A small helper process that does the forking for us. Launching from a JVM with a
+ * huge heap is slow (and {@link Josh#launchMechanism(String)} only helps so much);
+ * launching from a tiny shell is cheap and stays cheap however big we get. Start one
+ * early, while the heap is still small, and hand it to {@link Josh#forkserver}.
+ * <p>
+ * The helper is a plain {@code /bin/sh} in a read-eval loop. Each launch is one
+ * shell-quoted line on its stdin; it backgrounds the command and reports back
+ * {@code pid} and {@code exit} lines on its stdout. Piped stdin, stdout, and stderr
+ * go through named pipes in a private temp directory. (Passing file descriptors
+ * over a unix socket would be neater, but there's no way to do that from java.)
+ * <p>
+ * Caveats, compared to launching directly:
+ * <ul>
+ * <li>Stdin and stdout can't be {@link ProcessBuilder.Redirect#INHERIT inherited}:
+ * they'd be the helper's, and those are busy. ({@link Opts#DirectIO} won't do; the
+ * {@link Opts#DefaultIO default} copiers will.) Inherited stderr is fine.
+ * <li>A command that can't be found shows up as exit code 127 (with a complaint on
+ * its stderr) instead of an IOException from {@code start()}.
+ * <li>{@link Pipeline}s don't go through the forkserver.
+ * <li>A {@link Josh#reactor reactor} is ignored: output gets copier threads, same as
+ * with no reactor. (The reactor only ever polls, and our ends of the named pipes
+ * don't get opened until someone reads them.)
+ * </ul>
+ */
+public class ForkServer implements Closeable {
+	public ForkServer() throws IOException {
+		fifos = Files.createTempDirectory("josh-forkserver-");
+		ProcessBuilder bother = new ProcessBuilder("/bin/sh", "-c", ""
+				+ "exec 3>&2\n" // keep our stderr around as 3, for children that inherit it
+				+ "nl=$(printf '\\n_'); nl=${nl%_}\n"
+				+ "d="+quote(fifos.toString())+"\n"
+				+ "while IFS= read -r l; do eval \"$l\"; done\n"
+		);
+		bother.redirectError(ProcessBuilder.Redirect.INHERIT);
+		helper = bother.start();
+		requests = new BufferedOutputStream(helper.getOutputStream());
+		Thread reader = new Thread(new Runnable() {
+			public void run() {
+				readStatus();
+			}
+		}, "josh-forkserver");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	private final Path fifos;
+	private final Process helper;
+	private final OutputStream requests; // guarded by this
+	private final AtomicLong ids = new AtomicLong();
+	private final ConcurrentMap<Long,RemoteProcess> running = new ConcurrentHashMap<Long,RemoteProcess>();
+	private volatile IOException broken;
+
+	/**
+	 * Launches what the builder describes.
+	 * Blocks until the helper has reported back the new process's pid.
+	 */
+	Process start(ProcessBuilder bother) throws IOException {
+		if (bother.redirectInput().type() == ProcessBuilder.Redirect.Type.INHERIT || bother.redirectOutput().type() == ProcessBuilder.Redirect.Type.INHERIT)
+			throw new UnsupportedOperationException("a forkserver can't hand our stdin or stdout to a process; use copiers or redirect to files");
+		long id = ids.incrementAndGet();
+		RemoteProcess proc = new RemoteProcess(id,
+				stream(bother.redirectInput(), id, "in"),
+				stream(bother.redirectOutput(), id, "out"),
+				bother.redirectErrorStream() ? null : stream(bother.redirectError(), id, "err")
+		);
+
+		StringBuilder line = new StringBuilder(256);
+		line.append("{ ");
+		if (proc.in.fifo != null || proc.out.fifo != null || proc.err.fifo != null) {
+			line.append("mkfifo");
+			for (LazyStream stream : proc.streams())
+				if (stream.fifo != null)
+					line.append(" \"$d/").append(stream.fifo.getFileName()).append('"');
+			line.append("; ");
+		}
+		line.append("( cd ").append(quote(bother.directory() == null ? new File("").getAbsolutePath() : bother.directory().getPath()));
+		line.append(" && exec env -i");
+		for (Map.Entry<String,String> pair : bother.environment().entrySet())
+			line.append(' ').append(quote(pair.getKey()+"="+pair.getValue()));
+		for (String arg : bother.command())
+			line.append(' ').append(quote(arg));
+		line.append(" )");
+		line.append(" <").append(target(bother.redirectInput(), proc.in));
+		line.append(" >").append(target(bother.redirectOutput(), proc.out));
+		line.append(" 2>").append(bother.redirectErrorStream() ? "&1" : target(bother.redirectError(), proc.err));
+		line.append(" 3>&-");
+		// the shell's own complaints (like announcing a kill) go nowhere.
+		line.append(" & echo \"pid ").append(id).append(" $!\"; wait $!; echo \"exit ").append(id).append(" $?\"; } 2>/dev/null &\n");
+
+		running.put(id, proc);
+		try {
+			synchronized (this) {
+				if (broken != null)
+					throw broken;
+				requests.write(line.toString().getBytes(StandardCharsets.UTF_8));
+				requests.flush();
+			}
+		} catch (IOException e) {
+			running.remove(id);
+			throw new IOException("forkserver is gone", e);
+		}
+		try {
+			proc.pid = proc.launched.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted waiting for forkserver");
+		} catch (ExecutionException e) {
+			throw new IOException("forkserver is gone", e.getCause());
+		}
+		return proc;
+	}
+
+	private LazyStream stream(ProcessBuilder.Redirect redirect, long id, String name) {
+		if (redirect.type() != ProcessBuilder.Redirect.Type.PIPE)
+			return new LazyStream(null);
+		return new LazyStream(fifos.resolve(id+"."+name));
+	}
+
+	private static String target(ProcessBuilder.Redirect redirect, LazyStream stream) {
+		switch (redirect.type()) {
+			case PIPE:
+				return "\"$d/"+stream.fifo.getFileName()+"\"";
+			case READ:
+			case WRITE:
+				return quote(redirect.file().getPath());
+			case APPEND:
+				return ">"+quote(redirect.file().getPath());
+			case INHERIT:
+				return "&3"; // only stderr gets this far
+			default:
+				throw new IllegalArgumentException(redirect.toString());
+		}
+	}
+
+	static String quote(String s) {
+		// single quotes take everything literally except themselves.  and newlines would end the request line, so splice those in from $nl.
+		return "'"+s.replace("'", "'\\''").replace("\n", "'\"$nl\"'")+"'";
+	}
+
+	private void readStatus() {
+		IOException cause = null;
+		try {
+			BufferedReader status = new BufferedReader(new InputStreamReader(helper.getInputStream(), StandardCharsets.UTF_8));
+			String line;
+			while ((line = status.readLine()) != null) {
+				String[] words = line.split(" ");
+				if (words.length != 3)
+					continue;
+				RemoteProcess proc = running.get(Long.parseLong(words[1]));
+				if (proc == null)
+					continue;
+				if (words[0].equals("pid")) {
+					proc.launched.complete(Long.parseLong(words[2]));
+				} else if (words[0].equals("exit")) {
+					running.remove(proc.id);
+					exited(proc, Integer.parseInt(words[2]));
+				}
+			}
+		} catch (IOException e) {
+			cause = e;
+		} catch (RuntimeException e) {
+			cause = new IOException("forkserver said something unintelligible", e);
+		}
+		synchronized (this) {
+			broken = cause != null ? cause : new EOFException("forkserver exited");
+		}
+		for (RemoteProcess proc : running.values())
+			proc.launched.completeExceptionally(broken);
+		// anything that was running is orphaned now.  we'll never hear how it went.
+		for (RemoteProcess proc : running.values())
+			exited(proc, -1);
+		running.clear();
+	}
+
+	private static void exited(final RemoteProcess proc, final int code) {
+		// not on the status reader: whatever's chained on the exit may well want to launch something, and then wait for us to read its pid.
+		JoshExecutor.Default.execute(new Runnable() {
+			public void run() {
+				proc.exited(code);
+			}
+		});
+	}
+
+	/**
+	 * Shuts the helper down. Processes it launched keep running, but we'll no longer
+	 * hear about their exits.
+	 */
+	public void close() throws IOException {
+		synchronized (this) {
+			requests.close();
+		}
+		try {
+			helper.waitFor();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(fifos)) {
+			for (Path fifo : leftovers)
+				Files.deleteIfExists(fifo);
+		}
+		Files.deleteIfExists(fifos);
+	}
+
+
+
+	/**
+	 * A process the forkserver launched for us. It's not our child, so all we know is
+	 * its pid and what the forkserver tells us.
+	 */
+	static class RemoteProcess extends Process {
+		RemoteProcess(long id, LazyStream in, LazyStream out, LazyStream err) {
+			this.id = id;
+			this.in = in;
+			this.out = out;
+			this.err = err != null ? err : new LazyStream(null);
+		}
+
+		final long id;
+		final LazyStream in;
+		final LazyStream out;
+		final LazyStream err;
+		final CompletableFuture<Long> launched = new CompletableFuture<Long>();
+		final CompletableFuture<Process> exit = new CompletableFuture<Process>();
+		volatile long pid;
+		volatile int exitCode;
+
+		List<LazyStream> streams() {
+			return Arrays.asList(in, out, err);
+		}
+
+		void exited(int code) {
+			exitCode = code;
+			for (LazyStream stream : streams())
+				stream.abandon();
+			exit.complete(this);
+		}
+
+		public OutputStream getOutputStream() {
+			return in.asOutput();
+		}
+
+		public InputStream getInputStream() {
+			return out.asInput();
+		}
+
+		public InputStream getErrorStream() {
+			return err.asInput();
+		}
+
+		public int waitFor() throws InterruptedException {
+			try {
+				exit.get();
+			} catch (ExecutionException e) {
+				throw new Error(e); // never completes exceptionally
+			}
+			return exitCode;
+		}
+
+		public int exitValue() {
+			if (!exit.isDone())
+				throw new IllegalThreadStateException("process hasn't exited");
+			return exitCode;
+		}
+
+		public boolean isAlive() {
+			return !exit.isDone();
+		}
+
+		public CompletableFuture<Process> onExit() {
+			return exit.copy();
+		}
+
+		public long pid() {
+			return pid;
+		}
+
+		public ProcessHandle toHandle() {
+			Optional<ProcessHandle> handle = ProcessHandle.of(pid);
+			if (!handle.isPresent())
+				throw new IllegalStateException("process "+pid+" is gone");
+			return handle.get();
+		}
+
+		public void destroy() {
+			Optional<ProcessHandle> handle = ProcessHandle.of(pid);
+			if (handle.isPresent())
+				handle.get().destroy();
+		}
+
+		public Process destroyForcibly() {
+			Optional<ProcessHandle> handle = ProcessHandle.of(pid);
+			if (handle.isPresent())
+				handle.get().destroyForcibly();
+			return this;
+		}
+	}
+
+
+
+	/**
+	 * One end of a named pipe, opened the first time it's used (opening blocks until
+	 * the process opens its end, and we don't want {@code start()} to wait on that).
+	 * Null fifo means the stream was redirected elsewhere: reads see EOF and writes go
+	 * nowhere, same as ProcessBuilder's null streams.
+	 */
+	private static class LazyStream {
+		LazyStream(Path fifo) {
+			this.fifo = fifo;
+		}
+
+		final Path fifo;
+		private Closeable opened; // guarded by this
+		private boolean opening, abandoned; // guarded by this
+
+		InputStream asInput() {
+			return new InputStream() {
+				public int read() throws IOException {
+					InputStream in = input();
+					return in == null ? -1 : in.read();
+				}
+
+				public int read(byte[] b, int off, int len) throws IOException {
+					InputStream in = input();
+					return in == null ? -1 : in.read(b, off, len);
+				}
+
+				public int available() throws IOException {
+					InputStream in;
+					synchronized (LazyStream.this) {
+						in = (InputStream) opened;
+					}
+					return in == null ? 0 : in.available();
+				}
+
+				public void close() throws IOException {
+					LazyStream.this.close(false);
+				}
+			};
+		}
+
+		OutputStream asOutput() {
+			return new OutputStream() {
+				public void write(int b) throws IOException {
+					OutputStream out = output();
+					if (out == null)
+						throw new IOException("Stream closed");
+					out.write(b);
+				}
+
+				public void write(byte[] b, int off, int len) throws IOException {
+					OutputStream out = output();
+					if (out == null)
+						throw new IOException("Stream closed");
+					out.write(b, off, len);
+				}
+
+				public void flush() throws IOException {
+					OutputStream out;
+					synchronized (LazyStream.this) {
+						out = (OutputStream) opened;
+					}
+					if (out != null)
+						out.flush();
+				}
+
+				public void close() throws IOException {
+					LazyStream.this.close(true);
+				}
+			};
+		}
+
+		private InputStream input() throws IOException {
+			return (InputStream) open(false);
+		}
+
+		private OutputStream output() throws IOException {
+			return (OutputStream) open(true);
+		}
+
+		private Closeable open(boolean write) throws IOException {
+			synchronized (this) {
+				if (opened != null || fifo == null || abandoned)
+					return opened;
+				opening = true;
+			}
+			Closeable stream = write ? new FileOutputStream(fifo.toFile()) : new FileInputStream(fifo.toFile());
+			synchronized (this) {
+				opening = false;
+				opened = stream;
+				return stream;
+			}
+		}
+
+		/**
+		 * Closing a stream that was never opened still has to open it, or the process
+		 * would sit forever waiting for us to open our end.
+		 */
+		private void close(boolean write) throws IOException {
+			Closeable stream = open(write);
+			if (stream != null)
+				stream.close();
+		}
+
+		/**
+		 * The process has exited. Anything still stuck opening our end would wait
+		 * forever, so open the other end ourselves to let it through, and make sure
+		 * nothing else tries. Then the fifo can go.
+		 */
+		void abandon() {
+			boolean stuck;
+			synchronized (this) {
+				abandoned = true;
+				stuck = opening;
+			}
+			if (fifo == null)
+				return;
+			try {
+				if (stuck) {
+					// whichever end they're after, opening read-write gets them unstuck without blocking us.
+					new RandomAccessFile(fifo.toFile(), "rw").close();
+				}
+				Files.deleteIfExists(fifo);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
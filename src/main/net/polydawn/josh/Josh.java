@@ -20,8 +20,11 @@
 package net.polydawn.josh;
 
 import java.io.*;
+import java.time.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.stream.*;
 
 /**
  * A command template.  The n'th reimplementation of pbs/gosh/sigh.
@@ -34,27 +37,62 @@ import java.util.concurrent.*;
 public class Josh {
 	public Josh(String cmd) {
 		this.cmd = cmd;
-		this.args = Collections.emptyList();
-		this.env = Collections.unmodifiableMap(System.getenv());
+		this.args = new Args(null, new String[] {cmd});
+		this.envBase = System.getenv();
+		this.envDelta = Collections.emptyMap();
 		this.cwd = null;
 		this.opts = Opts.DefaultIO;
 		this.okExit = Collections.unmodifiableList(Arrays.asList(new Integer[] {0}));
+		this.executor = defaultExecutor;
+		this.reactor = null;
+		this.forkserver = null;
+		this.timeout = null;
+		this.deadline = null;
+		this.killGrace = Duration.ofSeconds(5);
+		this.killTree = false;
+		this.listener = JoshMetrics.Default;
 	}
 
 	private Josh(Josh cpy) {
 		this.cmd = cpy.cmd;
 		this.args = cpy.args;
-		this.env = cpy.env;
+		this.envBase = cpy.envBase;
+		this.envDelta = cpy.envDelta;
+		this.envBlock = cpy.envBlock;
 		this.cwd = cpy.cwd;
 		this.opts = cpy.opts;
 		this.okExit = cpy.okExit;
+		this.executor = cpy.executor;
+		this.reactor = cpy.reactor;
+		this.forkserver = cpy.forkserver;
+		this.timeout = cpy.timeout;
+		this.deadline = cpy.deadline;
+		this.killGrace = cpy.killGrace;
+		this.killTree = cpy.killTree;
+		this.listener = cpy.listener;
 	}
 
 	// treat all fields as final, i just can't be arsed to make enough copy constructors to have them actually be so.
 
 	private String cmd;
-	private List<String> args;
-	private Map<String,String> env;
+	private Args args; // starts with cmd itself
+	/**
+	 * The environment we start from: the JVM's own, or whatever {@link #filterEnv} or
+	 * {@link #clearEnv} left.  Shared between templates; never modified.
+	 */
+	private Map<String,String> envBase;
+	/**
+	 * Changes on top of {@link #envBase}; a null value means removed.  Usually a handful
+	 * of entries, so copying it for each derived template is cheap, unlike copying the
+	 * whole environment.
+	 */
+	private Map<String,String> envDelta;
+	/**
+	 * {@link #envBase} with {@link #envDelta} applied, computed at most once per
+	 * template (and shared with derived templates that don't touch env).  Null until
+	 * something's launched.
+	 */
+	private volatile Map<String,String> envBlock;
 	private File cwd; // null will cause inherit
 	private Opts opts;
 
@@ -64,54 +102,135 @@ public class Josh {
 	 */
 	private List<Integer> okExit;
 
+	/**
+	 * Runs the io copiers.  Defaults to {@link #defaultExecutor}.
+	 */
+	private Executor executor;
+
+	/**
+	 * {@link JoshExecutor#Default}, unless the {@code net.polydawn.josh.virtual} system property
+	 * is set, in which case it's {@link JoshExecutor#virtualThreads()}.  (Or, if this JVM has no
+	 * virtual threads, {@link JoshExecutor#Default} after all, and a warning.)
+	 */
+	private static final Executor defaultExecutor = pickDefaultExecutor();
+
+	private static Executor pickDefaultExecutor() {
+		if (!Boolean.getBoolean("net.polydawn.josh.virtual"))
+			return JoshExecutor.Default;
+		try {
+			return JoshExecutor.virtualThreads();
+		} catch (UnsupportedOperationException e) {
+			// failing here would fail class init, and then every use of Josh ever after.  a slower pool beats that.
+			System.err.println("josh: "+e.getMessage()+"; using platform threads instead");
+			return JoshExecutor.Default;
+		}
+	}
+
+	/**
+	 * If set, multiplexes the stdout and stderr pipes instead of giving each a copier.
+	 */
+	private JoshReactor reactor;
+
+	/**
+	 * If set, processes are launched by asking this instead of forking the JVM.
+	 */
+	private ForkServer forkserver;
+
+	/**
+	 * How long each launch gets before it's killed.  Null for forever.
+	 */
+	private Duration timeout;
+
+	/**
+	 * When every launch gets killed, whenever it was launched.  Null for never.
+	 */
+	private Instant deadline;
+
+	/**
+	 * How long a process gets to go quietly after SIGTERM before it gets SIGKILL.
+	 */
+	private Duration killGrace;
+
+	/**
+	 * Whether killing a process kills everything it spawned, too.
+	 */
+	private boolean killTree;
+
+	/**
+	 * Hears about everything.  Never null; {@link JoshMetrics#Default} unless told otherwise.
+	 */
+	private JoshListener listener;
+
+	/**
+	 * Set once anything's been launched, after which {@link #launchMechanism(String)} is too late.
+	 */
+	private static volatile boolean launched;
+
+	/**
+	 * Picks how the JVM launches processes: {@code "POSIX_SPAWN"} (the default on
+	 * linux and mac in modern JVMs), {@code "VFORK"} (linux only), or {@code "FORK"}.
+	 * Plain {@code fork} copies the page tables of the whole JVM, so its cost grows
+	 * with the heap; the other two don't. See the LaunchBenchmark for numbers.
+	 * <p>
+	 * This is global, not per command: the JVM reads the
+	 * {@code jdk.lang.Process.launchMechanism} system property exactly once, when it
+	 * launches its first process, and never again. So call this before starting
+	 * anything, or just pass {@code -Djdk.lang.Process.launchMechanism=...} on the
+	 * command line. (If some other library launched a process before we did, this
+	 * will have no effect, and we can't tell.)
+	 *
+	 * @throws IllegalStateException if josh has already launched a process.
+	 */
+	public static void launchMechanism(String mechanism) {
+		if (!Arrays.asList("POSIX_SPAWN", "VFORK", "FORK").contains(mechanism))
+			throw new IllegalArgumentException("unknown launch mechanism \""+mechanism+"\"; expected POSIX_SPAWN, VFORK, or FORK");
+		if (launched)
+			throw new IllegalStateException("the launch mechanism is fixed when the first process is launched, and that has already happened");
+		System.setProperty("jdk.lang.Process.launchMechanism", mechanism);
+	}
+
 	public Josh args(String... moreArgs) {
+		if (moreArgs.length == 0) return this;
 		Josh next = new Josh(this);
-		List<String> argsNext = new ArrayList<String>(this.args.size()+moreArgs.length);
-		argsNext.addAll(this.args);
-		for (String moreArg : moreArgs)
-			argsNext.add(moreArg);
-		next.args = Collections.unmodifiableList(argsNext);
+		next.args = new Args(this.args, moreArgs.clone());
 		return next;
 	}
 
 	public Josh env(String key, String value) {
 		Josh next = new Josh(this);
-		Map<String,String> envNext = new HashMap<String,String>();
-		envNext.putAll(this.env);
-		if (value != null)
-			envNext.put(key, value);
-		else
-			envNext.remove(key);
-		next.env = Collections.unmodifiableMap(envNext);
+		Map<String,String> deltaNext = new HashMap<String,String>(this.envDelta);
+		deltaNext.put(key, value);
+		next.envDelta = Collections.unmodifiableMap(deltaNext);
+		next.envBlock = null;
 		return next;
 	}
 
 	public Josh env(Map<String,String> moreEnv) {
 		Josh next = new Josh(this);
-		Map<String,String> envNext = new HashMap<String,String>();
-		envNext.putAll(this.env);
-		for (Map.Entry<String,String> pair : moreEnv.entrySet())
-			if (pair.getValue() != null)
-				envNext.put(pair.getKey(), pair.getValue());
-			else
-				envNext.remove(pair.getKey());
-		next.env = Collections.unmodifiableMap(envNext);
+		Map<String,String> deltaNext = new HashMap<String,String>(this.envDelta);
+		deltaNext.putAll(moreEnv);
+		next.envDelta = Collections.unmodifiableMap(deltaNext);
+		next.envBlock = null;
 		return next;
 	}
 
 	public Josh filterEnv(Collection<String> allowedKeys) {
 		Josh next = new Josh(this);
 		Map<String,String> envNext = new HashMap<String,String>();
-		for (Map.Entry<String,String> pair : this.env.entrySet())
+		for (Map.Entry<String,String> pair : this.environment().entrySet())
 			if (allowedKeys.contains(pair.getKey()))
 				envNext.put(pair.getKey(), pair.getValue());
-		next.env = Collections.unmodifiableMap(envNext);
+		next.envBase = Collections.unmodifiableMap(envNext);
+		next.envDelta = Collections.emptyMap();
+		next.envBlock = null;
 		return next;
 	}
 
 	public Josh clearEnv() {
 		Josh next = new Josh(this);
-		next.env = Collections.emptyMap();
+		next.envBase = Collections.emptyMap();
+		next.envDelta = Collections.emptyMap();
+		next.envBlock = null;
 		return next;
 	}
 
@@ -142,18 +261,351 @@ public class Josh {
 		return next;
 	}
 
-	public Future<Integer> start() throws IOException {
-		String[] cmdarray = new String[args.size()+1];
-		cmdarray[0] = cmd;
-		for (int i = 1; i < cmdarray.length; i++)
-			cmdarray[i] = args.get(i-1);
+	/**
+	 * Use the given executor to run the tasks that shuttle the process's input and
+	 * output.  (Nothing waits for the exit itself; see {@link #start()}.)  The executor
+	 * must be able to run up to three tasks at once per concurrent process (a copier
+	 * that's stuck in a queue can leave its process blocked on a full pipe forever),
+	 * so don't hand this a small fixed pool with a queue.
+	 */
+	public Josh executor(Executor newExecutor) {
+		Josh next = new Josh(this);
+		next.executor = newExecutor;
+		return next;
+	}
+
+	/**
+	 * Shuttle stdout and stderr through the given reactor rather than parking a
+	 * copier thread on each. Pass null to go back to copier threads. (Processes
+	 * launched through a {@link #forkserver} get copier threads regardless.)
+	 */
+	public Josh reactor(JoshReactor newReactor) {
+		Josh next = new Josh(this);
+		next.reactor = newReactor;
+		return next;
+	}
+
+	/**
+	 * Kill the process if it hasn't finished within {@code newTimeout} of being
+	 * launched. The future from {@link #start()} then fails with a
+	 * {@link TimeoutException}. See {@link #killGrace(Duration)} for how the killing
+	 * goes. Null for no timeout (the default).
+	 */
+	public Josh timeout(Duration newTimeout) {
+		Josh next = new Josh(this);
+		next.timeout = newTimeout;
+		return next;
+	}
+
+	/**
+	 * Like {@link #timeout(Duration)}, but an absolute time, for when several
+	 * commands in a row all have to be done by then. If both are set, whichever comes
+	 * first wins.
+	 */
+	public Josh deadline(Instant newDeadline) {
+		Josh next = new Josh(this);
+		next.deadline = newDeadline;
+		return next;
+	}
+
+	/**
+	 * When a process is killed (because of a timeout, or because the future from
+	 * {@link #start()} was cancelled), it first gets SIGTERM, then SIGKILL if it's still
+	 * around after this long. Default 5 seconds.
+	 */
+	public Josh killGrace(Duration newKillGrace) {
+		Josh next = new Josh(this);
+		next.killGrace = newKillGrace;
+		return next;
+	}
+
+	/**
+	 * When a process is killed, kill all of its descendants too. Otherwise a child
+	 * that was holding on to the process's stdout can keep a copier waiting long after
+	 * the process itself is gone. Off by default.
+	 */
+	public Josh killTree(boolean newKillTree) {
+		Josh next = new Josh(this);
+		next.killTree = newKillTree;
+		return next;
+	}
+
+	/**
+	 * Report launches, io, and exits to the given listener instead of to
+	 * {@link JoshMetrics#Default}. (Wrap the default in your own if you want both.)
+	 */
+	public Josh listener(JoshListener newListener) {
+		if (newListener == null)
+			throw new NullPointerException("listener can't be null; use an empty JoshListener to ignore everything");
+		Josh next = new Josh(this);
+		next.listener = newListener;
+		return next;
+	}
+
+	/**
+	 * Launch processes through the given forkserver rather than forking this JVM.
+	 * Pass null to go back to launching directly. See {@link ForkServer} for what
+	 * that can't do.
+	 */
+	public Josh forkserver(ForkServer newForkserver) {
+		Josh next = new Josh(this);
+		next.forkserver = newForkserver;
+		return next;
+	}
+
+	/**
+	 * Launches the command.
+	 * <p>
+	 * The returned future completes once the process has exited and all of its input
+	 * and output has been shuttled; it fails with an {@link ExecutionException} if the
+	 * exit code isn't one of the {@link #okExit(Integer...) ok} ones. No thread is
+	 * parked waiting for the exit: it's driven by {@link Process#onExit()}, so chain
+	 * follow-up work with {@code thenApply}, {@code thenCompose}, etc as you please.
+	 * That follow-up runs in this thread's {@link WithCwd}, even though it's not on this
+	 * thread (the {@code *Async} variants excepted; see WithCwd).
+	 * <p>
+	 * Cancelling the future kills the process (see {@link #killGrace(Duration)}), and
+	 * so does the future failing for any other reason while the process is still
+	 * running, like a {@link #timeout(Duration)}.
+	 */
+	public CompletableFuture<Integer> start() throws IOException {
+		return exitCode(execute());
+	}
+
+	/**
+	 * Maps a supervised execution to just its exit code.  Cancelling a dependent
+	 * future doesn't cancel what it depends on, so failing (or cancelling) the mapped
+	 * future is passed back up by hand; otherwise cancelling it wouldn't kill anything.
+	 */
+	static CompletableFuture<Integer> exitCode(final CompletableFuture<ExecutionResult> execution) {
+		CompletableFuture<Integer> exit = execution.thenApply(new Function<ExecutionResult,Integer>() {
+			public Integer apply(ExecutionResult result) {
+				return result.exitCode();
+			}
+		});
+		exit.whenComplete(new BiConsumer<Integer,Throwable>() {
+			public void accept(Integer code, Throwable t) {
+				if (t != null)
+					execution.cancel(true);
+			}
+		});
+		return exit;
+	}
+
+	/**
+	 * Launches the command, same as {@link #start()}, but the future completes with an
+	 * {@link ExecutionResult} saying what the process cost instead of just the exit
+	 * code. A not-ok exit code still fails the future, with an
+	 * {@link ExitStatusException} that carries the result anyway.
+	 */
+	public CompletableFuture<ExecutionResult> execute() throws IOException {
+		return execute(WithCwd.current());
+	}
+
+	/**
+	 * {@link #execute()}, for launching on behalf of another thread: {@code contextCwd}
+	 * is that thread's {@link WithCwd#current()}.
+	 */
+	CompletableFuture<ExecutionResult> execute(File contextCwd) throws IOException {
+		long launchStart = System.nanoTime();
+		return supervise(launch(builder(contextCwd)), launchStart, true, true, contextCwd);
+	}
+
+	/**
+	 * Launches the command and hands back its output as a lazy stream of lines.
+	 * <p>
+	 * Lines are read straight off the process's stdout as you pull them (no copier,
+	 * no buffering up the whole output; whatever out was set to in the opts is
+	 * ignored). Like {@link Opts#out(Collection)}, each line keeps its line break.
+	 * Stdin and stderr are handled according to the opts, same as {@link #start()}.
+	 * <p>
+	 * When the stream runs out, we wait for the process to exit and check the exit
+	 * code; if it's not ok, the terminal operation throws a
+	 * {@link CompletionException} wrapping the usual {@link ExecutionException}.
+	 * Closing the stream before it runs out kills the process. Use try-with-resources.
+	 */
+	public Stream<String> lines() throws IOException {
+		ProcessBuilder bother = builder();
+		bother.redirectOutput(ProcessBuilder.Redirect.PIPE);
+		long launchStart = System.nanoTime();
+		Process proc = launch(bother);
+		final LineIterator lines = new LineIterator(this, proc, supervise(proc, launchStart, true, false));
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(lines, Spliterator.ORDERED | Spliterator.NONNULL), false).onClose(new Runnable() {
+			public void run() {
+				lines.close();
+			}
+		});
+	}
+
+	/**
+	 * Launches every one of {@code cmds}, keeping at most {@code maxConcurrent} of them
+	 * running at once, and collects how each one went. Nothing fails fast: every
+	 * command gets run, and the returned future always completes normally once they've
+	 * all finished; look at the {@link Batch.Result}s for failures.
+	 */
+	public static CompletableFuture<List<Batch.Result>> runAll(Collection<Josh> cmds, int maxConcurrent) {
+		return runAll(cmds, maxConcurrent, false);
+	}
+
+	/**
+	 * Like {@link #runAll(Collection, int)}, but with {@code failFast} set, the first
+	 * failure stops any more commands from being launched. (Ones already running are
+	 * left to finish.) The commands that never got launched still get a result, with
+	 * {@link Batch.Result#launched()} false.
+	 */
+	public static CompletableFuture<List<Batch.Result>> runAll(Collection<Josh> cmds, int maxConcurrent, boolean failFast) {
+		return new Batch(cmds, maxConcurrent, failFast).run();
+	}
+
+	/**
+	 * Launches the command as a long-lived coprocess that answers requests over its
+	 * stdin and stdout, framed by {@code framing}. Whatever in and out were set to in
+	 * the opts is ignored; err is handled as usual.
+	 */
+	public <T> Session<T> session(Session.Framing<T> framing) throws IOException {
+		return new Session<T>(this, framing);
+	}
+
+	/**
+	 * Launches {@code size} copies of the command as coprocesses, and spreads requests
+	 * across them. See {@link #session(Session.Framing)}.
+	 */
+	public <T> Session.Pool<T> sessions(Session.Framing<T> framing, int size) throws IOException {
+		return new Session.Pool<T>(this, framing, size);
+	}
+
+	/**
+	 * Pipes the output of this command into the input of {@code next}, like
+	 * {@code this | next} in a shell. The processes are connected to each other by
+	 * the OS, so the bytes between them never pass through the JVM; this command's
+	 * out and {@code next}'s in are ignored. Each stage keeps its own err.
+	 */
+	public Pipeline pipe(Josh next) {
+		return new Pipeline(Arrays.asList(this, next));
+	}
+
+	/**
+	 * The environment to launch with: {@link #envBase} with {@link #envDelta} applied.
+	 * Merged the first time it's asked for and cached after that; if there's no delta,
+	 * it's just the base, no copying at all.
+	 */
+	private Map<String,String> environment() {
+		Map<String,String> block = envBlock;
+		if (block == null) {
+			if (envDelta.isEmpty()) {
+				block = envBase;
+			} else {
+				Map<String,String> merged = new HashMap<String,String>(envBase);
+				for (Map.Entry<String,String> pair : envDelta.entrySet())
+					if (pair.getValue() != null)
+						merged.put(pair.getKey(), pair.getValue());
+					else
+						merged.remove(pair.getKey());
+				block = Collections.unmodifiableMap(merged);
+			}
+			envBlock = block;
+		}
+		return block;
+	}
+
+	/**
+	 * The last {@code user.dir} we resolved, and what it resolved to.
+	 */
+	private static volatile CwdMemo cwdMemo;
+
+	private static final class CwdMemo {
+		CwdMemo(String userDir, File resolved) {
+			this.userDir = userDir;
+			this.resolved = resolved;
+		}
+
+		final String userDir;
+		final File resolved;
+	}
+
+	/**
+	 * Where a process with no cwd of its own gets launched: wherever {@code user.dir}
+	 * says.  Which is a hack based on the fact the getCanonicalFile resolver actually
+	 * pays attention to the system property for 'user.dir', which IMO the
+	 * ProcessBuilder should for consistency, but doesnt.  (Though while some other
+	 * thread is in a {@link WithCwd}, it's the {@code user.dir} from before that; see
+	 * {@link WithCwd#baseDir()}.)
+	 * <p>
+	 * Canonicalizing hits the filesystem, so the answer is remembered for as long as
+	 * {@code user.dir} stays the same string. (If a symlink in that path gets pointed
+	 * somewhere else in the meantime, we won't notice. Neither would a shell.)
+	 */
+	static File inheritedCwd() throws IOException {
+		String userDir = WithCwd.baseDir();
+		CwdMemo memo = cwdMemo;
+		if (memo == null || !memo.userDir.equals(userDir)) {
+			memo = new CwdMemo(userDir, new File(userDir).getCanonicalFile());
+			cwdMemo = memo;
+		}
+		return memo.resolved;
+	}
+
+	/**
+	 * The command and its args, as a chain of appends.  Deriving a template with more
+	 * args adds a link instead of copying everything before it, and the chain only gets
+	 * flattened into a cmdarray when something's launched -- once, after which every
+	 * template sharing this link shares the array too.
+	 */
+	private static final class Args {
+		Args(Args prev, String[] more) {
+			this.prev = prev;
+			this.more = more;
+			this.size = (prev == null ? 0 : prev.size) + more.length;
+		}
+
+		private final Args prev;
+		private final String[] more;
+		private final int size;
+		private volatile String[] flat;
+
+		/** Don't modify the returned array; it's shared. */
+		String[] cmdarray() {
+			String[] cmdarray = flat;
+			if (cmdarray == null) {
+				cmdarray = new String[size];
+				int end = size;
+				for (Args link = this; link != null; link = link.prev) {
+					end -= link.more.length;
+					System.arraycopy(link.more, 0, cmdarray, end, link.more.length);
+				}
+				flat = cmdarray;
+			}
+			return cmdarray;
+		}
+	}
+
+	/**
+	 * Sets up a ProcessBuilder for this command: cmd, args, env, cwd, and redirects
+	 * as the opts call for.
+	 */
+	ProcessBuilder builder() throws IOException {
+		return builder(WithCwd.current());
+	}
+
+	/**
+	 * @param contextCwd where to run if this command has no cwd of its own, usually the
+	 *        launching thread's {@link WithCwd#current()}.  If that's null too, it's
+	 *        {@code user.dir}.
+	 */
+	ProcessBuilder builder(File contextCwd) throws IOException {
+		if (!launched) launched = true;
 
-		ProcessBuilder bother = new ProcessBuilder().command(cmdarray);
-		bother.environment().clear();
-		bother.environment().putAll(env);
+		ProcessBuilder bother = new ProcessBuilder().command(args.cmdarray()); // copies it, so sharing the cached array is fine
+		Map<String,String> env = environment();
+		if (env != System.getenv()) {
+			// if it's the untouched inherited env, leave the ProcessBuilder's alone: it never even builds a map then, and the child inherits ours directly.
+			bother.environment().clear();
+			bother.environment().putAll(env);
+		}
 		if (cwd == null) {
-			// this is a hack based on the fact the getCanonicalFile resolver actually pays attention to the system property for 'user.dir', which IMO the ProcessBuilder should for consistency, but doesnt.
-			bother.directory(new File("").getCanonicalFile());
+			bother.directory(contextCwd != null ? contextCwd : inheritedCwd());
+		} else if (contextCwd != null && !cwd.isAbsolute()) {
+			bother.directory(new File(contextCwd, cwd.getPath()));
 		} else {
 			bother.directory(cwd);
 		}
@@ -165,68 +617,508 @@ public class Josh {
 		// There's literally no way to tell if System.in and FileDescriptor(0) are the same thing.  Meditate on that for a moment.
 		// Great, guys.  Fucking fine grade-A API.  Totally fucking reasonable.
 		// So, we have no choice but to expose that all the way through to the userland API of Josh and let the consumer decide which route is least fucked for them.
-		bother.redirectInput( opts.in  instanceof Opts.MagicInputStream  ? ProcessBuilder.Redirect.INHERIT : ProcessBuilder.Redirect.PIPE);
-		bother.redirectOutput(opts.out instanceof Opts.MagicOutputStream ? ProcessBuilder.Redirect.INHERIT : ProcessBuilder.Redirect.PIPE);
-		bother.redirectError( opts.err instanceof Opts.MagicOutputStream ? ProcessBuilder.Redirect.INHERIT : ProcessBuilder.Redirect.PIPE);
-		final Process proc = bother.start();
-		final Thread incopier  = !(opts.in  instanceof Opts.MagicInputStream)  ? iocopy(opts.in, proc.getOutputStream()) : null;
-		final Thread outcopier = !(opts.out instanceof Opts.MagicOutputStream) ? iocopy(proc.getInputStream(), opts.out) : null;
-		final Thread errcopier = !(opts.err instanceof Opts.MagicOutputStream) ? iocopy(proc.getErrorStream(), opts.err) : null;
-
-		FutureTask<Integer> answer = new FutureTask<Integer>(new Callable<Integer>() {
-			public Integer call() throws Exception {
-				int exitCode = proc.waitFor();
-				if (incopier  != null) incopier.join();
-				if (outcopier != null) outcopier.join();
-				if (errcopier != null) errcopier.join();
-				if (okExit != null && !okExit.contains(exitCode))
-					throw new ExecutionException("executing \""+cmd+"\" returned code "+exitCode, null);
-				return exitCode;
+		bother.redirectInput( opts.in  instanceof Opts.MagicInputStream  ? ((Opts.MagicInputStream) opts.in).redirect   : ProcessBuilder.Redirect.PIPE);
+		bother.redirectOutput(opts.out instanceof Opts.MagicOutputStream ? ((Opts.MagicOutputStream) opts.out).redirect : ProcessBuilder.Redirect.PIPE);
+		bother.redirectError( opts.err instanceof Opts.MagicOutputStream ? ((Opts.MagicOutputStream) opts.err).redirect : ProcessBuilder.Redirect.PIPE);
+		bother.redirectErrorStream(opts.err instanceof Opts.MergedOutputStream);
+		return bother;
+	}
+
+	/**
+	 * Hooks up the copiers for a freshly started process and checks its exit code
+	 * when everything's done. Stdin and stdout are only touched if {@code withIn} and
+	 * {@code withOut} say they're ours (in a pipeline, they mostly belong to the
+	 * neighbours).
+	 */
+	CompletableFuture<ExecutionResult> supervise(Process proc, long launchStart, boolean withIn, boolean withOut) {
+		return supervise(proc, launchStart, withIn, withOut, WithCwd.current());
+	}
+
+	/**
+	 * {@link #supervise(Process, long, boolean, boolean)}, with the returned future
+	 * completed from inside {@code contextCwd}: whatever's chained on it runs on the
+	 * reaper or a copier thread, and a launch from in there should land where the
+	 * original one did, not wherever that thread happens to be.
+	 */
+	CompletableFuture<ExecutionResult> supervise(final Process proc, long launchStart, boolean withIn, boolean withOut, final File contextCwd) {
+		final Tally tally = new Tally(this, proc, launchStart);
+		listener.onSpawn(this, proc, tally.launchNanos);
+		final List<CompletableFuture<?>> copiers = new ArrayList<CompletableFuture<?>>(3);
+		if (withIn  && !(opts.in  instanceof Opts.MagicInputStream))  copiers.add(iocopy(opts.in, tally.in(proc.getOutputStream()), true));
+		if (withOut && !(opts.out instanceof Opts.MagicOutputStream)) copiers.add(drain(proc, tally.out(proc.getInputStream()), opts.out));
+		if (           !(opts.err instanceof Opts.MagicOutputStream)) copiers.add(drain(proc, tally.err(proc.getErrorStream()), opts.err));
+		List<CompletableFuture<?>> pending = new ArrayList<CompletableFuture<?>>(copiers);
+		pending.add(proc.onExit());
+		KeepAlive.acquire();
+
+		// allOf waits for everything even if something fails (like a cancelled copier), and the process is always among them; so this always gets to see the exit.
+		final CompletableFuture<ExecutionResult> finished = CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[pending.size()])).handle(new BiFunction<Void,Throwable,ExecutionResult>() {
+			public ExecutionResult apply(Void done, Throwable t) {
+				try {
+					ExecutionResult result = tally.result(cmd, proc.exitValue());
+					listener.onExit(Josh.this, result);
+					return result;
+				} finally {
+					KeepAlive.release();
+				}
+			}
+		});
+		final CompletableFuture<ExecutionResult> result = finished.thenCompose(new Function<ExecutionResult,CompletionStage<ExecutionResult>>() {
+			public CompletionStage<ExecutionResult> apply(ExecutionResult result) {
+				if (!isOk(result.exitCode()))
+					return CompletableFuture.failedFuture(new ExitStatusException(result));
+				return CompletableFuture.completedFuture(result);
+			}
+		});
+
+		Duration limit = timeout;
+		if (deadline != null) {
+			Duration untilDeadline = Duration.between(Instant.now(), deadline);
+			if (limit == null || untilDeadline.compareTo(limit) < 0)
+				limit = untilDeadline;
+		}
+		if (limit != null)
+			result.orTimeout(Math.max(0, limit.toNanos()), TimeUnit.NANOSECONDS);
+
+		// timed out, cancelled, whatever: if we've given up on it, it doesn't get to keep running.
+		result.whenComplete(new BiConsumer<ExecutionResult,Throwable>() {
+			public void accept(ExecutionResult done, Throwable t) {
+				if (t == null || !proc.isAlive())
+					return;
+				kill(proc);
+				for (CompletableFuture<?> copier : copiers)
+					copier.cancel(true);
+			}
+		});
+
+		final CompletableFuture<ExecutionResult> scoped = new CompletableFuture<ExecutionResult>();
+		result.whenComplete(new BiConsumer<ExecutionResult,Throwable>() {
+			public void accept(final ExecutionResult done, final Throwable t) {
+				WithCwd.in(contextCwd, new Runnable() {
+					public void run() {
+						if (t != null)
+							scoped.completeExceptionally(t);
+						else
+							scoped.complete(done);
+					}
+				});
+			}
+		});
+		// same deal as exitCode: giving up on the one we hand out has to give up on the real one.
+		scoped.whenComplete(new BiConsumer<ExecutionResult,Throwable>() {
+			public void accept(ExecutionResult done, Throwable t) {
+				if (t != null)
+					result.cancel(true);
+			}
+		});
+		return scoped;
+	}
+
+	/**
+	 * Holds the JVM open while anything we launched is still running or still having
+	 * its output shuttled.  The copier pool's threads are daemons, so that idle ones
+	 * don't hold up exit; this is the one non-daemon thread, and it only exists while
+	 * there's something in flight.  Same effect as back when every process had its
+	 * own non-daemon waiter and copier threads: a {@code start()} at the end of
+	 * {@code main} still gets to finish, output and all.  ({@code System.exit} doesn't
+	 * wait for it, same as ever.)
+	 */
+	private static class KeepAlive extends Thread {
+		private static int inFlight; // guarded by KeepAlive.class
+		private static KeepAlive holder; // guarded by KeepAlive.class
+
+		static synchronized void acquire() {
+			inFlight++;
+			if (holder == null) {
+				holder = new KeepAlive();
+				holder.start();
+			}
+		}
+
+		static synchronized void release() {
+			if (--inFlight == 0)
+				KeepAlive.class.notifyAll();
+		}
+
+		private KeepAlive() {
+			super("josh-keepalive");
+			setDaemon(false);
+		}
+
+		public void run() {
+			synchronized (KeepAlive.class) {
+				try {
+					while (true) {
+						while (inFlight > 0)
+							KeepAlive.class.wait();
+						// hang around a moment for the next launch; a loop of start().get() would otherwise cost a thread apiece.
+						KeepAlive.class.wait(10);
+						if (inFlight == 0)
+							break;
+					}
+				} catch (InterruptedException e) {
+					// someone wants us gone.  fine.
+				} finally {
+					holder = null;
+				}
+			}
+		}
+	}
+
+	/**
+	 * SIGTERM now (to the whole tree, if {@link #killTree}); SIGKILL for any survivors
+	 * after {@link #killGrace}. Reaping is the JVM's business, as always.
+	 */
+	void kill(final Process proc) {
+		final List<ProcessHandle> tree = new ArrayList<ProcessHandle>();
+		if (killTree) {
+			// gather them up before the parent goes, or they'll be orphans and no longer anyone's descendants.
+			Iterator<ProcessHandle> descendants = proc.descendants().iterator();
+			while (descendants.hasNext())
+				tree.add(descendants.next());
+		}
+		proc.destroy();
+		for (ProcessHandle descendant : tree)
+			descendant.destroy();
+		CompletableFuture.delayedExecutor(killGrace.toNanos(), TimeUnit.NANOSECONDS).execute(new Runnable() {
+			public void run() {
+				if (proc.isAlive())
+					proc.destroyForcibly();
+				for (ProcessHandle descendant : tree)
+					if (descendant.isAlive())
+						descendant.destroyForcibly();
 			}
 		});
-		new Thread(answer).start();
-		return answer;
 	}
 
-	private static Thread iocopy(final InputStream in, final OutputStream out) {
+	/**
+	 * Starts the process the builder describes, via the forkserver if there is one.
+	 */
+	Process launch(ProcessBuilder bother) throws IOException {
+		return forkserver != null ? forkserver.start(bother) : bother.start();
+	}
+
+	Executor executor() {
+		return executor;
+	}
+
+	void copierError(IOException e) {
+		listener.onCopierError(this, e);
+	}
+
+	boolean isOk(int exitCode) {
+		return okExit == null || okExit.contains(exitCode);
+	}
+
+
+	private CompletableFuture<Void> drain(Process proc, InputStream in, OutputStream out) {
+		if (out instanceof OutputPublisher)
+			return ((OutputPublisher)out).attach(this, in, executor); // reads on demand; no copier at all
+		// a forkserver's pipes are fifos we haven't opened yet, and the reactor only ever asks available() -- it would never open them, and the child would sit blocked opening its end forever.
+		if (reactor == null || out instanceof Opts.ClosedOutputStream || proc instanceof ForkServer.RemoteProcess)
+			return iocopy(in, out, false);
+		return reactor.register(this, proc, in, out);
+	}
+
+	/**
+	 * @param eagerFlush flush {@code out} whenever {@code in} has nothing more ready
+	 *        right now.  Wanted when {@code out} is a process's (buffered) stdin and the
+	 *        input is trickling in, otherwise the process may sit waiting on bytes
+	 *        that are sitting in our buffer.
+	 */
+	private CompletableFuture<Void> iocopy(InputStream in, OutputStream out, boolean eagerFlush) {
 		if (out instanceof Opts.ClosedOutputStream) {
 			try {
 				in.close();
 			} catch (IOException e1) {
-				e1.printStackTrace();
+				copierError(e1);
 			}
-			return null;
+			return CompletableFuture.completedFuture(null);
 		}
 		if (in instanceof Opts.ClosedInputStream) {
 			try {
 				out.close();
 			} catch (IOException e1) {
-				e1.printStackTrace();
+				copierError(e1);
 			}
-			return null;
+			return CompletableFuture.completedFuture(null);
+		}
+		Copier copier = new Copier(this, in, out, eagerFlush);
+		executor.execute(copier);
+		return copier;
+	}
+
+	/**
+	 * The io copier task, and its own future. Unlike the usual CompletableFuture,
+	 * cancelling it actually does something: it interrupts the copy, which is enough
+	 * to get it out of waiting on input like {@link Opts#in_streaming}. (A copier
+	 * stuck reading a process's pipe is unstuck by killing the process; one stuck
+	 * reading something like System.in stays stuck until it gets some input, and then
+	 * quits.)
+	 */
+	private static class Copier extends CompletableFuture<Void> implements Runnable {
+		Copier(Josh josh, InputStream in, OutputStream out, boolean eagerFlush) {
+			this.josh = josh;
+			this.in = in;
+			this.out = out;
+			this.eagerFlush = eagerFlush;
 		}
-		Thread t = new Thread() { public void run() {
+
+		private final Josh josh;
+		private final InputStream in;
+		private final OutputStream out;
+		private final boolean eagerFlush;
+		private Thread thread; // guarded by this
+
+		public void run() {
+			synchronized (this) {
+				if (isDone())
+					return;
+				thread = Thread.currentThread();
+			}
 			try {
-				byte[] buf = new byte[1024*8]; int k;
+				shuttle();
+			} finally {
+				synchronized (this) {
+					thread = null;
+					Thread.interrupted(); // don't leave a late cancel's interrupt lying around for the pool's next task
+				}
+				complete(null);
+			}
+		}
+
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			boolean cancelled = super.cancel(mayInterruptIfRunning);
+			synchronized (this) {
+				if (thread != null)
+					thread.interrupt();
+			}
+			return cancelled;
+		}
+
+		private void shuttle() {
+			byte[] buf = BufferPool.acquire(BufferPool.min);
+			try {
+				int k;
 				while ((k = in.read(buf)) != -1) {
+					if (isCancelled())
+						throw new InterruptedIOException("copier cancelled");
 					out.write(buf, 0, k);
+					if (eagerFlush && in.available() <= 0)
+						out.flush();
+					// a read that fills the whole buffer means there was more waiting.  bulk stream; take bigger bites.
+					if (k == buf.length)
+						buf = BufferPool.grow(buf);
 				}
 				out.close();
 			} catch (IOException e) {
-				e.printStackTrace();
-				try {
-					in.close();
-				} catch (IOException e1) {
-					e1.printStackTrace();
+				if (!isCancelled())
+					josh.copierError(e);
+				abandon();
+			} catch (RuntimeException e) {
+				// a user's sink blew up.  same as the reactor: report it, and close up so the process gets EPIPE instead of a full pipe forever.
+				josh.copierError(new IOException("output sink failed", e));
+				abandon();
+			} finally {
+				BufferPool.release(buf);
+			}
+		}
+
+		private void abandon() {
+			try {
+				in.close();
+			} catch (IOException e1) {
+				josh.copierError(e1);
+			}
+			try {
+				out.close();
+			} catch (IOException | RuntimeException e1) {
+				// out may well be the very sink that just threw.
+				josh.copierError(e1 instanceof IOException ? (IOException) e1 : new IOException("output sink failed", e1));
+			}
+		}
+	}
+
+
+
+	/**
+	 * Counts what goes through a process's pipes, and when, for its {@link ExecutionResult}.
+	 * Each stream only ever has one thread reading or writing it, so plain volatiles do.
+	 */
+	private static class Tally {
+		Tally(Josh josh, Process proc, long launchStart) {
+			this.josh = josh;
+			this.proc = proc;
+			this.launchStart = launchStart;
+			this.launchNanos = System.nanoTime()-launchStart;
+		}
+
+		private final Josh josh;
+		private final Process proc;
+		private final long launchStart;
+		final long launchNanos;
+		private volatile long firstByte = -1;
+		private volatile long cpuNanos = -1;
+		private CountedInput out, err;
+		private CountedOutput in;
+
+		OutputStream in(OutputStream stream) {
+			return in = new CountedOutput(stream, 0);
+		}
+
+		InputStream out(InputStream stream) {
+			return out = new CountedInput(stream, 1);
+		}
+
+		InputStream err(InputStream stream) {
+			return err = new CountedInput(stream, 2);
+		}
+
+		private void sawOutput() {
+			if (firstByte >= 0)
+				return;
+			synchronized (this) { // stdout and stderr may race for it
+				if (firstByte >= 0)
+					return;
+				firstByte = System.nanoTime()-launchStart;
+			}
+			josh.listener.onFirstOutput(josh, proc, firstByte);
+		}
+
+		private void sampleCpu() {
+			try {
+				Optional<Duration> cpu = proc.info().totalCpuDuration();
+				if (cpu.isPresent())
+					cpuNanos = Math.max(cpuNanos, cpu.get().toNanos());
+			} catch (RuntimeException e) {
+				// gone already.  it's best effort.
+			}
+		}
+
+		ExecutionResult result(String cmd, int exitCode) {
+			return new ExecutionResult(cmd, exitCode, proc.pid(), launchNanos, firstByte, System.nanoTime()-launchStart,
+					in == null ? -1 : in.count, out == null ? -1 : out.count, err == null ? -1 : err.count, cpuNanos);
+		}
+
+		private class CountedInput extends FilterInputStream {
+			CountedInput(InputStream in, int fd) {
+				super(in);
+				this.fd = fd;
+			}
+
+			final int fd;
+			volatile long count;
+
+			public int read() throws IOException {
+				int b = in.read();
+				counted(b == -1 ? -1 : 1);
+				return b;
+			}
+
+			public int read(byte[] b, int off, int len) throws IOException {
+				int k = in.read(b, off, len);
+				counted(k);
+				return k;
+			}
+
+			private void counted(int k) {
+				if (k > 0) {
+					if (count == 0)
+						sawOutput();
+					count += k;
+					josh.listener.onBytesCopied(josh, proc, fd, k);
+				} else if (k == -1) {
+					sampleCpu(); // it's probably exiting right now.  last chance to ask.
 				}
-				try {
-					out.close();
-				} catch (IOException e1) {
-					e1.printStackTrace();
+			}
+		}
+
+		private class CountedOutput extends FilterOutputStream {
+			CountedOutput(OutputStream out, int fd) {
+				super(out);
+				this.fd = fd;
+			}
+
+			final int fd;
+			volatile long count;
+
+			public void write(int b) throws IOException {
+				out.write(b);
+				count++;
+				josh.listener.onBytesCopied(josh, proc, fd, 1);
+			}
+
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+				count += len;
+				josh.listener.onBytesCopied(josh, proc, fd, len);
+			}
+		}
+	}
+
+
+
+	private static class LineIterator implements Iterator<String> {
+		LineIterator(Josh josh, Process proc, CompletableFuture<ExecutionResult> exit) {
+			this.josh = josh;
+			this.in = proc.getInputStream();
+			this.exit = exit;
+			this.stringer = new Opts.OutputStringer(pending);
+		}
+
+		private final Josh josh;
+		private final InputStream in;
+		private final CompletableFuture<ExecutionResult> exit;
+		private final Deque<String> pending = new ArrayDeque<String>();
+		private final Opts.OutputStringer stringer;
+		private byte[] buf;
+		private boolean done;
+
+		public boolean hasNext() {
+			try {
+				while (pending.isEmpty()) {
+					if (done)
+						return false;
+					if (buf == null)
+						buf = BufferPool.acquire(BufferPool.min);
+					int k = in.read(buf);
+					if (k == -1) {
+						stringer.close();
+						finish();
+						exit.join(); // throws if the exit code wasn't ok
+					} else {
+						stringer.write(buf, 0, k);
+					}
 				}
+				return true;
+			} catch (IOException e) {
+				close();
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		public String next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			return pending.poll();
+		}
+
+		private void finish() {
+			done = true;
+			BufferPool.release(buf);
+			buf = null;
+		}
+
+		void close() {
+			if (done)
+				return;
+			finish();
+			exit.cancel(true); // kills it, with the usual grace
+			try {
+				in.close();
+			} catch (IOException e) {
+				josh.copierError(e);
 			}
-		}};
-		t.start();
-		return t;
+		}
 	}
 }
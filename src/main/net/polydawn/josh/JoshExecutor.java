@@ -0,0 +1,116 @@
+/*
+ * This file is part of josh <https://github.com/polydawn/josh/>.
+ *
+ * josh is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.polydawn.josh;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * The pool that runs the io copier tasks for a {@link Josh} that hasn't
+ * been given some other {@link java.util.concurrent.Executor}.
+ * <p>
+ * Threads are daemons, and are reaped after idling for a while. (Idle threads
+ * shouldn't hold up JVM exit. Josh keeps one non-daemon thread of its own around for
+ * as long as any process is running or still having its output shuttled, which does.)
+ * <p>
+ * The pool is bounded, but it never queues and it never rejects: when it's
+ * saturated, the task gets a fresh thread of its own (exactly what every task got
+ * before there was a pool at all), and {@link #saturations()} ticks up so you can
+ * tell you should raise the bound.
+ * <p>
+ * The rest of the usual saturation metrics ({@link #getActiveCount()},
+ * {@link #getPoolSize()}, {@link #getLargestPoolSize()}, etc) come straight from
+ * {@link ThreadPoolExecutor}.
+ */
+public class JoshExecutor extends ThreadPoolExecutor {
+	/**
+	 * The pool shared by every Josh that doesn't say otherwise. Sized by the
+	 * {@code net.polydawn.josh.threads} system property (default 256).
+	 */
+	public static final JoshExecutor Default = new JoshExecutor(Integer.getInteger("net.polydawn.josh.threads", 256));
+
+	public JoshExecutor(int maxThreads) {
+		// no queue, ever.  a copier sitting in a queue behind copiers whose processes are blocked writing into its pipe is a deadlock.
+		super(0, maxThreads, 30, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new DaemonThreadFactory(), new Overflow());
+	}
+
+	/**
+	 * An executor that runs every task on a fresh virtual thread, for use with
+	 * {@link Josh#executor(java.util.concurrent.Executor)}. Blocking pipe reads and
+	 * waits then cost a virtual thread apiece instead of a platform thread, which is
+	 * what you want for tens of thousands of concurrent commands.
+	 * <p>
+	 * Virtual threads need a JVM that has them (21 and up); we find them reflectively
+	 * so that josh still runs on older JVMs.
+	 *
+	 * @throws UnsupportedOperationException if this JVM has no virtual threads.
+	 */
+	public static ExecutorService virtualThreads() {
+		if (VirtualHolder.executor == null)
+			throw new UnsupportedOperationException("virtual threads are not available in this JVM ("+System.getProperty("java.version")+")");
+		return VirtualHolder.executor;
+	}
+
+	private static class VirtualHolder {
+		static final ExecutorService executor;
+		static {
+			ExecutorService found;
+			try {
+				found = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			} catch (ReflectiveOperationException e) {
+				found = null;
+			}
+			executor = found;
+		}
+	}
+
+	private final AtomicLong saturations = new AtomicLong();
+
+	/**
+	 * @return the number of tasks that found every pool thread busy and had to be
+	 *         run on a dedicated overflow thread instead.
+	 */
+	public long saturations() {
+		return saturations.get();
+	}
+
+
+
+	private static class DaemonThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "josh-"+count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+
+
+
+	private static class Overflow implements RejectedExecutionHandler {
+		public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+			if (executor.isShutdown())
+				throw new RejectedExecutionException("josh executor has been shut down");
+			((JoshExecutor)executor).saturations.incrementAndGet();
+			Thread t = new Thread(r, "josh-overflow");
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+}
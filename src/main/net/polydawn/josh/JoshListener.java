@@ -0,0 +1,62 @@
+/*
+ * This file is part of josh <https://github.com/polydawn/josh/>.
+ *
+ * josh is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.polydawn.josh;
+
+import java.io.*;
+
+/**
+ * Hears about every process a {@link Josh} launches, from launch to exit. Set one with
+ * {@link Josh#listener(JoshListener)}; the default is {@link JoshMetrics#Default}.
+ * <p>
+ * Callbacks come from whatever thread happens to be doing the work (the launching
+ * thread, copier threads, etc), often several at once, and {@link #onBytesCopied} comes
+ * once per chunk of io. Keep them quick and thread-safe. Everything's a no-op unless
+ * you override it.
+ * <p>
+ * Streams are identified by the usual file descriptor numbers: 0 for stdin, 1 for
+ * stdout, 2 for stderr.
+ */
+public interface JoshListener {
+	/**
+	 * A process was launched, which took {@code launchNanos}.
+	 */
+	default void onSpawn(Josh josh, Process proc, long launchNanos) {}
+
+	/**
+	 * The first byte of output (stdout or stderr, whichever was first) arrived,
+	 * {@code nanos} after the launch began.
+	 */
+	default void onFirstOutput(Josh josh, Process proc, long nanos) {}
+
+	/**
+	 * Some bytes went through the JVM to or from the process.
+	 */
+	default void onBytesCopied(Josh josh, Process proc, int fd, int bytes) {}
+
+	/**
+	 * The process exited and its io is all done, whether or not the exit code was ok.
+	 * (For a killed process, that's once the killing is done.)
+	 */
+	default void onExit(Josh josh, ExecutionResult result) {}
+
+	/**
+	 * Shuttling io to or from a process failed. The process carries on regardless; the
+	 * stream in question is closed.
+	 */
+	default void onCopierError(Josh josh, IOException e) {}
+}
@@ -0,0 +1,174 @@
+/*
+ * This file is part of josh <https://github.com/polydawn/josh/>.
+ *
+ * josh is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.polydawn.josh;
+
+import java.io.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Counters and latency histograms for processes and their io. This is the
+ * {@link JoshListener} every Josh starts out with, sharing {@link #Default}, so
+ * there's always something to look at.
+ * <p>
+ * Everything here is a running total (or a distribution of everything so far); for
+ * rates, like spawns per second or bytes per second, sample twice and divide by the
+ * interval, same as with any other monotonic counter.
+ * <p>
+ * Copier errors get counted, and also printed to stderr, which is what josh did with
+ * them before there was any such thing as a listener.
+ */
+public class JoshMetrics implements JoshListener {
+	public static final JoshMetrics Default = new JoshMetrics();
+
+	private final LongAdder spawned = new LongAdder();
+	private final LongAdder exited = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+	private final LongAdder copierErrors = new LongAdder();
+	private final LongAdder[] bytes = { new LongAdder(), new LongAdder(), new LongAdder() };
+	private final Histogram spawnLatency = new Histogram();
+	private final Histogram firstOutputLatency = new Histogram();
+	private final Histogram runtime = new Histogram();
+
+	public void onSpawn(Josh josh, Process proc, long launchNanos) {
+		spawned.increment();
+		spawnLatency.record(launchNanos);
+	}
+
+	public void onFirstOutput(Josh josh, Process proc, long nanos) {
+		firstOutputLatency.record(nanos);
+	}
+
+	public void onBytesCopied(Josh josh, Process proc, int fd, int n) {
+		bytes[fd].add(n);
+	}
+
+	public void onExit(Josh josh, ExecutionResult result) {
+		exited.increment();
+		if (!josh.isOk(result.exitCode()))
+			failed.increment();
+		runtime.record(result.runtimeNanos());
+	}
+
+	public void onCopierError(Josh josh, IOException e) {
+		copierErrors.increment();
+		e.printStackTrace();
+	}
+
+	public long spawned() {
+		return spawned.sum();
+	}
+
+	public long exited() {
+		return exited.sum();
+	}
+
+	/**
+	 * @return how many processes are running (or at least, haven't had their exit and
+	 *         io all wrapped up yet).
+	 */
+	public long active() {
+		return spawned.sum() - exited.sum();
+	}
+
+	/**
+	 * @return how many processes exited with a code that wasn't ok.
+	 */
+	public long failed() {
+		return failed.sum();
+	}
+
+	public long copierErrors() {
+		return copierErrors.sum();
+	}
+
+	public long bytesIn() {
+		return bytes[0].sum();
+	}
+
+	public long bytesOut() {
+		return bytes[1].sum();
+	}
+
+	public long bytesErr() {
+		return bytes[2].sum();
+	}
+
+	public Histogram spawnLatency() {
+		return spawnLatency;
+	}
+
+	public Histogram firstOutputLatency() {
+		return firstOutputLatency;
+	}
+
+	public Histogram runtime() {
+		return runtime;
+	}
+
+	public String toString() {
+		return "spawned "+spawned()+", active "+active()+", failed "+failed()+", copier errors "+copierErrors()
+			+"; bytes in/out/err "+bytesIn()+"/"+bytesOut()+"/"+bytesErr()
+			+"; spawn p50/p99 "+spawnLatency.percentile(0.5)/1000+"/"+spawnLatency.percentile(0.99)/1000+"us";
+	}
+
+
+
+	/**
+	 * A histogram of nanosecond durations in power-of-two buckets. Recording is one
+	 * atomic increment; percentiles come back as the upper bound of the bucket they
+	 * land in, so they're accurate to within a factor of two, which is plenty for
+	 * telling a 2ms spawn from a 50ms one.
+	 */
+	public static class Histogram {
+		private final AtomicLongArray buckets = new AtomicLongArray(64);
+
+		public void record(long nanos) {
+			// bucket i holds [2^(i-1), 2^i).  bucket 0 is just zero.
+			buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(Math.max(0, nanos)));
+		}
+
+		public long count() {
+			long count = 0;
+			for (int i = 0; i < 64; i++)
+				count += buckets.get(i);
+			return count;
+		}
+
+		/**
+		 * @param q between 0 and 1; 0.99 for the p99.
+		 * @return the upper bound of the bucket the {@code q}'th value falls in, or
+		 *         zero if nothing has been recorded.
+		 */
+		public long percentile(double q) {
+			long[] counts = new long[64];
+			long total = 0;
+			for (int i = 0; i < 64; i++)
+				total += counts[i] = buckets.get(i);
+			if (total == 0)
+				return 0;
+			long rank = (long) Math.ceil(q * total);
+			long seen = 0;
+			for (int i = 0; i < 64; i++) {
+				seen += counts[i];
+				if (seen >= Math.max(1, rank))
+					return i == 63 ? Long.MAX_VALUE : (1L << i) - 1;
+			}
+			return Long.MAX_VALUE;
+		}
+	}
+}
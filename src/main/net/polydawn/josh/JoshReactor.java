@@ -0,0 +1,196 @@
+/*
+ * This file is part of josh <https://github.com/polydawn/josh/>.
+ *
+ * josh is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.polydawn.josh;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Event loop(s) that multiplex the stdout and stderr pipes of any number of
+ * processes, instead of parking one thread per pipe in a blocking read. Turn it on
+ * for a command with {@link Josh#reactor(JoshReactor)}.
+ * <p>
+ * The pipes you get out of {@link Process} aren't selectable channels (thanks,
+ * ProcessBuilder), so there's no real epoll to be had here. What we do instead is
+ * poll {@link InputStream#available()} on every pipe and only ever read exactly
+ * what's already sitting in the kernel, so a reactor thread never blocks on a child.
+ * When a round finds nothing to do, the loop backs off for a few milliseconds.
+ * <p>
+ * Backpressure: a reactor thread writes each chunk into its sink before it reads
+ * anything more, so a slow sink stops the reads, the pipe fills, and the child
+ * blocks on its own write exactly like it would with a dedicated copier. The flip
+ * side is that one slow sink stalls every other pipe on the same reactor thread;
+ * give the reactor more threads if your sinks are slow.
+ * <p>
+ * Stdin still gets a copier on the command's executor: there's no way to ask a
+ * process pipe whether a write would block.
+ */
+public class JoshReactor {
+	/**
+	 * A single-threaded reactor shared by anyone who asks for it.
+	 */
+	public static final JoshReactor Default = new JoshReactor(1);
+
+	public JoshReactor(int threads) {
+		if (threads < 1)
+			throw new IllegalArgumentException("a reactor needs at least one thread");
+		loops = new Loop[threads];
+		for (int i = 0; i < threads; i++) {
+			loops[i] = new Loop();
+			Thread t = new Thread(loops[i], "josh-reactor-"+i);
+			t.setDaemon(true);
+			loops[i].thread = t;
+			t.start();
+		}
+	}
+
+	private final Loop[] loops;
+	private final AtomicInteger next = new AtomicInteger();
+
+	/**
+	 * Starts shuttling bytes from {@code in} (one of {@code proc}'s output pipes) to
+	 * {@code out}. Once the process has exited, whatever is left in the pipe is
+	 * drained (and {@code out} closed) by a task on {@code josh}'s executor.
+	 *
+	 * @return a future that completes when {@code out} has been closed.
+	 */
+	CompletableFuture<Void> register(Josh josh, Process proc, InputStream in, OutputStream out) {
+		Pipe pipe = new Pipe(josh, proc, in, out);
+		Loop loop = loops[(next.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+		loop.incoming.add(pipe);
+		LockSupport.unpark(loop.thread);
+		return pipe.done;
+	}
+
+
+
+	private static class Loop implements Runnable {
+		final Queue<Pipe> incoming = new ConcurrentLinkedQueue<Pipe>();
+		Thread thread;
+
+		public void run() {
+			List<Pipe> pipes = new ArrayList<Pipe>();
+			byte[] buf = new byte[1024*64];
+			int idle = 0;
+			while (true) {
+				Pipe pipe;
+				while ((pipe = incoming.poll()) != null)
+					pipes.add(pipe);
+
+				boolean busy = false;
+				Iterator<Pipe> itr = pipes.iterator();
+				while (itr.hasNext()) {
+					pipe = itr.next();
+					try {
+						int n = pipe.in.available();
+						if (n > 0) {
+							int k = pipe.in.read(buf, 0, Math.min(n, buf.length));
+							if (k > 0)
+								pipe.out.write(buf, 0, k);
+							busy = true;
+						} else if (!pipe.proc.isAlive()) {
+							// nothing left but the stragglers, and reading those can't block for long.  hand it off.
+							itr.remove();
+							pipe.executor.execute(pipe);
+						}
+					} catch (IOException e) {
+						pipe.josh.copierError(e);
+						pipe.abandoned = true;
+						itr.remove();
+						pipe.executor.execute(pipe);
+					} catch (RuntimeException e) {
+						// a user's sink blew up.  that's that pipe done for, but the loop has everyone else's to see to.
+						pipe.josh.copierError(new IOException("output sink failed", e));
+						pipe.abandoned = true;
+						itr.remove();
+						pipe.executor.execute(pipe);
+					}
+				}
+
+				if (busy)
+					idle = 0;
+				else if (incoming.isEmpty())
+					LockSupport.parkNanos(this, Math.min(1 << Math.min(idle++, 3), 10) * 1000000L);
+			}
+		}
+	}
+
+
+
+	private static class Pipe implements Runnable {
+		Pipe(Josh josh, Process proc, InputStream in, OutputStream out) {
+			this.josh = josh;
+			this.proc = proc;
+			this.in = in;
+			this.out = out;
+			this.executor = josh.executor();
+			this.done = new CompletableFuture<Void>();
+		}
+
+		final Josh josh;
+		final Process proc;
+		final InputStream in;
+		final OutputStream out;
+		final Executor executor;
+		final CompletableFuture<Void> done;
+
+		/** Set by the reactor if it already hit an error; the drain should just clean up. */
+		volatile boolean abandoned;
+
+		public void run() {
+			try {
+				finish();
+			} finally {
+				done.complete(null);
+			}
+		}
+
+		private void finish() {
+			byte[] buf = null;
+			try {
+				if (!abandoned) {
+					buf = BufferPool.acquire(BufferPool.min); int k;
+					while ((k = in.read(buf)) != -1) {
+						out.write(buf, 0, k);
+					}
+					out.close();
+					return;
+				}
+			} catch (IOException e) {
+				josh.copierError(e);
+			} catch (RuntimeException e) {
+				josh.copierError(new IOException("output sink failed", e));
+			} finally {
+				BufferPool.release(buf);
+			}
+			try {
+				in.close();
+			} catch (IOException e1) {
+				josh.copierError(e1);
+			}
+			try {
+				out.close();
+			} catch (IOException e1) {
+				josh.copierError(e1);
+			}
+		}
+	}
+}
@@ -20,9 +20,13 @@
 package net.polydawn.josh;
 
 import java.io.*;
+import java.lang.invoke.*;
 import java.nio.*;
 import java.nio.charset.*;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
 
 public class Opts {
 	public Opts() {}
@@ -87,6 +91,7 @@ public class Opts {
 	 *   - <-chan string, in which case that will be streamed in
 	 *   - <-chan byte[], in which case that will be streamed in
 	 *   - another Command, in which case that will be started with this one and its output piped into this one
+	 *     (that one's spelled {@link Josh#pipe(Josh)} here, and it bypasses this field entirely)
 	 */
 	InputStream in;
 
@@ -109,21 +114,55 @@ public class Opts {
 		return this;
 	}
 
+	/**
+	 * Feed the strings in the queue to the command, in order. Input ends as soon as
+	 * the queue is found empty, so fill it up before starting the command (or see
+	 * {@link #in_streaming(BlockingQueue)}).
+	 */
 	public Opts in(Queue<String> newInput) {
 		this.in = new InputStringer(newInput);
 		return this;
 	}
 
+	/**
+	 * Feed the strings in the queue to the command as they arrive. An empty queue
+	 * doesn't end the input; we wait for more. Input ends when the {@link #EOF}
+	 * marker is taken from the queue.
+	 */
+	public Opts in_streaming(BlockingQueue<String> newInput) {
+		this.in = new InputStringer(newInput, true);
+		return this;
+	}
+
+	/**
+	 * Put this (this very instance; it's compared by identity) into a queue given to
+	 * {@link #in_streaming(BlockingQueue)} to end the input.
+	 */
+	public static final String EOF = new String("EOF");
+
 	public Opts in(byte[] newInput) {
 		this.in = new ByteArrayInputStream(newInput);
 		return this;
 	}
 
+	/**
+	 * Stream input in from {@code newInput}. If that's a file, {@link #in(Path)} is
+	 * cheaper: the process reads the file itself instead of us copying it in.
+	 */
 	public Opts in(InputStream newInput) {
 		this.in = newInput;
 		return this;
 	}
 
+	/**
+	 * Read input straight from a file. The process gets the file itself
+	 * ({@link ProcessBuilder.Redirect#from(File)}), so the JVM never touches the bytes.
+	 */
+	public Opts in(Path newInput) {
+		this.in = new MagicInputStream(ProcessBuilder.Redirect.from(newInput.toFile()));
+		return this;
+	}
+
 	public Opts in_null() {
 		this.in = new ClosedInputStream();
 		return this;
@@ -148,18 +187,46 @@ public class Opts {
 
 	static class InputStringer extends InputStream {
 		public InputStringer(Queue<String> source) {
+			this(source, false);
+		}
+
+		public InputStringer(Queue<String> source, boolean streaming) {
 			// maybe Streams from java8 are actually what would best fulfill my dreams here
 			this.source = source;
+			this.streaming = streaming;
 			this.buffer = ByteBuffer.wrap(new byte[0]);
 		}
 
 		private final Queue<String> source;
-		private ByteBuffer buffer;
 
-		private boolean pump() {
-			if (!buffer.hasRemaining()) {
-				if (source.isEmpty()) return false;
-				buffer = ByteBuffer.wrap(source.poll().getBytes(Charset.forName("UTF-8")));
+		/**
+		 * If true, source is a BlockingQueue, and we block when it's empty until we get
+		 * more or get {@link Opts#EOF}.  If false, empty is the end.
+		 */
+		private final boolean streaming;
+
+		private ByteBuffer buffer;
+		private boolean ended;
+
+		private boolean pump() throws IOException {
+			while (!buffer.hasRemaining()) {
+				if (ended) return false;
+				String next;
+				if (streaming) {
+					try {
+						next = ((BlockingQueue<String>) source).take();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException("interrupted waiting for input");
+					}
+				} else {
+					next = source.poll();
+				}
+				if (next == null || next == EOF) {
+					ended = true;
+					return false;
+				}
+				buffer = ByteBuffer.wrap(next.getBytes(StandardCharsets.UTF_8));
 			}
 			return true;
 		}
@@ -170,7 +237,7 @@ public class Opts {
 
 		public int read() throws IOException {
 			if (!pump()) return -1;
-			return buffer.get();
+			return buffer.get() & 0xFF;
 		}
 
 		public int read(byte[] b) throws IOException {
@@ -178,6 +245,7 @@ public class Opts {
 		}
 
 		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) return 0;
 			if (!pump()) return -1;
 			int readSize = Math.min(len, available());
 			buffer.get(b, off, readSize);
@@ -275,7 +343,21 @@ public class Opts {
 
 
 
+	/**
+	 * Stands in for a {@link ProcessBuilder.Redirect}: the process's stdin is hooked
+	 * up by the OS and nothing is shuttled through the JVM at all.
+	 */
 	static class MagicInputStream extends InputStream {
+		public MagicInputStream() {
+			this(ProcessBuilder.Redirect.INHERIT);
+		}
+
+		public MagicInputStream(ProcessBuilder.Redirect redirect) {
+			this.redirect = redirect;
+		}
+
+		final ProcessBuilder.Redirect redirect;
+
 		public int available() {
 			return 0;
 		}
@@ -299,6 +381,10 @@ public class Opts {
 
 	// it's really embarassing how golang had all these awesome options for getting data back out, and in java it's kinda fuck you.
 
+	/**
+	 * Stream output out into {@code newOutput}. If that's a file, {@link #out(Path)}
+	 * is cheaper: the process writes the file itself instead of us copying it out.
+	 */
 	public Opts out(OutputStream newOutput) {
 		this.out = newOutput;
 		return this;
@@ -317,20 +403,57 @@ public class Opts {
 		return this;
 	}
 
+	/**
+	 * Provide a queue to stream lines of output into as they happen. If the queue is
+	 * bounded and fills up, we stop reading from the command until there's room
+	 * again, so the command pauses (blocked on a full pipe) instead of us piling up
+	 * output in memory.
+	 * <p>
+	 * (Any BlockingQueue given to {@link #out(Collection)} gets the same treatment;
+	 * this just says so.)
+	 */
+	public Opts out_streaming(BlockingQueue<String> newOutput) {
+		this.out = new OutputStringer(newOutput);
+		return this;
+	}
+
 	public Opts out(OutputStringer newOutput) {
 		this.out = newOutput;
 		return this;
 	}
 
-	//public Opts outBytes(Collection<byte[]> newOutput) {
-	//	this.out = new OutputChunker(newOutput);
-	//	return this;
-	//}
-	//
-	//public Opts outBytes(OutputChunker newOutput) {
-	//	this.out = newOutput;
-	//	return this;
-	//}
+	/**
+	 * Provide a collection to drain raw chunks of output into, exactly as they come
+	 * out of the pipe: no charset decoding, no line splitting. The same advice about
+	 * thread-safe queues as for {@link #out(Collection)} applies.
+	 */
+	public Opts outBytes(Collection<byte[]> newOutput) {
+		this.out = new OutputChunker(newOutput);
+		return this;
+	}
+
+	public Opts outBytes(OutputChunker newOutput) {
+		this.out = newOutput;
+		return this;
+	}
+
+	/**
+	 * Write output straight to a file, truncating it first. The process gets the file
+	 * itself ({@link ProcessBuilder.Redirect#to(File)}), so the JVM never touches the
+	 * bytes.
+	 */
+	public Opts out(Path newOutput) {
+		this.out = new MagicOutputStream(ProcessBuilder.Redirect.to(newOutput.toFile()));
+		return this;
+	}
+
+	/**
+	 * Like {@link #out(Path)}, but appends to the file.
+	 */
+	public Opts out_append(Path newOutput) {
+		this.out = new MagicOutputStream(ProcessBuilder.Redirect.appendTo(newOutput.toFile()));
+		return this;
+	}
 
 	public Opts out_null() {
 		this.out = new NullOutputStream();
@@ -359,6 +482,10 @@ public class Opts {
 
 	// and now all the same for stderr
 
+	/**
+	 * Stream errput out into {@code newErrput}. If that's a file, {@link #err(Path)}
+	 * is cheaper: the process writes the file itself instead of us copying it out.
+	 */
 	public Opts err(OutputStream newErrput) {
 		this.err = newErrput;
 		return this;
@@ -377,20 +504,62 @@ public class Opts {
 		return this;
 	}
 
+	/**
+	 * Provide a queue to stream lines of errput into as they happen. If the queue is
+	 * bounded and fills up, we stop reading from the command until there's room
+	 * again. See {@link #out_streaming(BlockingQueue)}.
+	 */
+	public Opts err_streaming(BlockingQueue<String> newErrput) {
+		this.err = new OutputStringer(newErrput);
+		return this;
+	}
+
 	public Opts err(OutputStringer newErrput) {
 		this.err = newErrput;
 		return this;
 	}
 
-	//public Opts errBytes(Collection<byte[]> newErrput) {
-	//	this.out = new OutputChunker(newErrput);
-	//	return this;
-	//}
-	//
-	//public Opts errBytes(OutputChunker newErrput) {
-	//	this.out = newErrput;
-	//	return this;
-	//}
+	/**
+	 * Provide a collection to drain raw chunks of errput into, exactly as they come
+	 * out of the pipe: no charset decoding, no line splitting. The same advice about
+	 * thread-safe queues as for {@link #err(Collection)} applies.
+	 */
+	public Opts errBytes(Collection<byte[]> newErrput) {
+		this.err = new OutputChunker(newErrput);
+		return this;
+	}
+
+	public Opts errBytes(OutputChunker newErrput) {
+		this.err = newErrput;
+		return this;
+	}
+
+	/**
+	 * Write errput straight to a file, truncating it first. The process gets the file
+	 * itself ({@link ProcessBuilder.Redirect#to(File)}), so the JVM never touches the
+	 * bytes.
+	 */
+	public Opts err(Path newErrput) {
+		this.err = new MagicOutputStream(ProcessBuilder.Redirect.to(newErrput.toFile()));
+		return this;
+	}
+
+	/**
+	 * Like {@link #err(Path)}, but appends to the file.
+	 */
+	public Opts err_append(Path newErrput) {
+		this.err = new MagicOutputStream(ProcessBuilder.Redirect.appendTo(newErrput.toFile()));
+		return this;
+	}
+
+	/**
+	 * Send errput to wherever output is going, like {@code 2>&1}
+	 * ({@link ProcessBuilder#redirectErrorStream(boolean)}). Saves a pipe and a copier.
+	 */
+	public Opts err_merge() {
+		this.err = new MergedOutputStream();
+		return this;
+	}
 
 	public Opts err_null() {
 		this.err = new NullOutputStream();
@@ -432,7 +601,7 @@ public class Opts {
 			this.sink = sink;
 			this.breakOnFlush = breakOnFlush;
 			this.breakByte = breakByte;
-			this.buffer = new ByteArrayOutputStream();
+			this.buffer = new byte[initialSize];
 		}
 
 		private final Collection<String> sink;
@@ -450,17 +619,27 @@ public class Opts {
 
 		private final byte breakByte;
 
-		private final ByteArrayOutputStream buffer;
+		/**
+		 * Holds the start of a line until we see the end of it.  Whole lines that
+		 * arrive in one write never get copied in here at all.  Not synchronized:
+		 * there's only ever one copier writing to us.
+		 */
+		private byte[] buffer;
+		private int count;
+
+		private static final int initialSize = 256;
+
+		/** After a line bigger than this, we give the buffer back instead of keeping it around forever. */
+		private static final int shrinkAbove = 1024*64;
 
 		public void write(int b) throws IOException {
-			buffer.write(b);
-			if (!breakOnFlush && b == breakByte)
+			if (count == buffer.length)
+				buffer = Arrays.copyOf(buffer, buffer.length << 1);
+			buffer[count++] = (byte) b;
+			if (!breakOnFlush && (byte) b == breakByte)
 				push();
 		}
 
-		// zero guarantees about the efficiency of all this.  java's stdlib for handling rows of bytes is one of
-		// the most monstrous survivors of the 90s and trying to fix it is like trying to cut a new sluice through
-		// the three gorges dam with tacky grill ignitor from the dollar store.
 		public void write(byte b[], int off, int len) throws IOException {
 			if (b == null)
 				throw new NullPointerException();
@@ -469,41 +648,180 @@ public class Opts {
 			if (len == 0)
 				return;
 			if (breakOnFlush) {
-				buffer.write(b, off, len);
-			} else {
-				for (int i = 0; i < len; i++) {
-					byte a = b[off + i];
-					buffer.write(a);
-					if (a == breakByte)
-						push();
+				append(b, off, len);
+				return;
+			}
+			int end = off + len;
+			int i;
+			while ((i = indexOf(b, off, end, breakByte)) != -1) {
+				if (count == 0) {
+					// the common case: a whole line, start to finish, in this chunk.  straight from their array to a string.
+					deliver(decode(b, off, i+1-off));
+				} else {
+					append(b, off, i+1-off);
+					push();
 				}
+				off = i+1;
 			}
+			if (off < end)
+				append(b, off, end-off);
+		}
+
+		private void append(byte[] b, int off, int len) {
+			if (count + len > buffer.length)
+				buffer = Arrays.copyOf(buffer, Math.max(buffer.length << 1, count + len));
+			System.arraycopy(b, off, buffer, count, len);
+			count += len;
 		}
 
-		private void push() {
+		private void push() throws InterruptedIOException {
+			deliver(decode(buffer, 0, count));
+			count = 0;
+			if (buffer.length > shrinkAbove)
+				buffer = new byte[initialSize];
+		}
+
+		/**
+		 * Blocking queues get a put() (so a full one pushes back on the copier, and
+		 * thus the command); everything else gets an add().
+		 */
+		private void deliver(String line) throws InterruptedIOException {
+			if (!(sink instanceof BlockingQueue)) {
+				sink.add(line);
+				return;
+			}
 			try {
-				sink.add(buffer.toString("UTF-8"));
-			} catch (UnsupportedEncodingException e) {
-				throw new Error(e);
+				((BlockingQueue<String>) sink).put(line);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted waiting for room in the output queue");
 			}
-			buffer.reset();
-			// if BAOS was a less completely shit abstraction i might ask it to shrink in case it's a gig, but, welp.
-			// someday some saint should make a halfway decent byte rope implementation.
 		}
 
+		// a cached CharsetDecoder sounds like it should win here, but it measures about half the speed: the String constructor has intrinsics for this.
+		private static String decode(byte[] b, int off, int len) {
+			return new String(b, off, len, StandardCharsets.UTF_8);
+		}
+
+		/**
+		 * Finds the first {@code target} byte in {@code b[from, to)}, eight bytes at a
+		 * time, or -1.
+		 */
+		static int indexOf(byte[] b, int from, int to, byte target) {
+			long pattern = (target & 0xFFL) * 0x0101010101010101L;
+			int i = from;
+			for (; i + 8 <= to; i += 8) {
+				// xor turns matching bytes into zeros; then the usual has-a-zero-byte trick.  the lowest flagged byte is always a real match.
+				long word = (long) longs.get(b, i) ^ pattern;
+				long found = (word - 0x0101010101010101L) & ~word & 0x8080808080808080L;
+				if (found != 0)
+					return i + (Long.numberOfTrailingZeros(found) >>> 3);
+			}
+			for (; i < to; i++)
+				if (b[i] == target)
+					return i;
+			return -1;
+		}
+
+		private static final VarHandle longs = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
 		public void flush() throws IOException {
 			if (breakOnFlush)
 				push();
 		}
 
 		public void close() throws IOException {
-			if (buffer.size() > 0)
+			if (count > 0)
 				push();
 		}
 	}
 
 
 
+	/**
+	 * Hands output on in raw chunks, one per write (which, coming from a copier, means
+	 * one per read off the pipe).
+	 * <p>
+	 * Given a collection, every chunk is copied into a fresh array of exactly the
+	 * right size, so you can keep it as long as you like. Given a consumer, every chunk
+	 * is a {@link Chunk} borrowed from a pool; call {@link Chunk#release()} when you're
+	 * done with it and the memory gets reused, making a busy binary stream close to
+	 * free of garbage. (Forgetting to release is safe, just not cheap.)
+	 */
+	public static class OutputChunker extends OutputStream {
+		public OutputChunker(Collection<byte[]> sink) {
+			this.sink = sink;
+			this.consumer = null;
+		}
+
+		public OutputChunker(Consumer<? super Chunk> consumer) {
+			this.sink = null;
+			this.consumer = consumer;
+		}
+
+		private final Collection<byte[]> sink;
+		private final Consumer<? super Chunk> consumer;
+
+		public void write(int b) throws IOException {
+			write(new byte[] {(byte) b}, 0, 1);
+		}
+
+		public void write(byte b[], int off, int len) throws IOException {
+			if (b == null)
+				throw new NullPointerException();
+			if ((off < 0) || (off > b.length) || (len < 0) || ((off + len) > b.length) || ((off + len) < 0))
+				throw new IndexOutOfBoundsException();
+			if (len == 0)
+				return;
+			if (sink != null) {
+				sink.add(Arrays.copyOfRange(b, off, off+len));
+				return;
+			}
+			byte[] buf = BufferPool.acquire(len);
+			if (buf.length < len) {
+				// bigger than anything we pool.  that's fine, it just won't go back to the pool.
+				buf = new byte[len];
+			}
+			System.arraycopy(b, off, buf, 0, len);
+			consumer.accept(new Chunk(buf, len));
+		}
+	}
+
+
+
+	/**
+	 * A chunk of output from an {@link OutputChunker}, in memory borrowed from a pool.
+	 */
+	public static class Chunk {
+		Chunk(byte[] array, int len) {
+			this.array = array;
+			this.buffer = ByteBuffer.wrap(array, 0, len).slice();
+		}
+
+		private byte[] array;
+		private final ByteBuffer buffer;
+
+		/**
+		 * The bytes. Don't hold on to this (or anything sharing its memory) after
+		 * calling {@link #release()}.
+		 */
+		public ByteBuffer buffer() {
+			return buffer;
+		}
+
+		/**
+		 * Returns the memory to the pool. Releasing more than once is harmless.
+		 */
+		public synchronized void release() {
+			if (array == null)
+				return;
+			BufferPool.release(array);
+			array = null;
+		}
+	}
+
+
+
 	static class ClosedOutputStream extends OutputStream {
 		// be nice if there was a predicate for, oh, i don't know, isClosed().
 		// but I guess the command runner will have to catch these and silently close the process's stream.
@@ -588,7 +906,21 @@ public class Opts {
 
 
 
+	/**
+	 * Stands in for a {@link ProcessBuilder.Redirect}: the process's stdout/stderr is
+	 * hooked up by the OS and nothing is shuttled through the JVM at all.
+	 */
 	static class MagicOutputStream extends OutputStream {
+		public MagicOutputStream() {
+			this(ProcessBuilder.Redirect.INHERIT);
+		}
+
+		public MagicOutputStream(ProcessBuilder.Redirect redirect) {
+			this.redirect = redirect;
+		}
+
+		final ProcessBuilder.Redirect redirect;
+
 		public void write(int b) throws IOException {}
 
 		public void write(byte[] b) throws IOException {}
@@ -599,4 +931,11 @@ public class Opts {
 
 		public void close() throws IOException {}
 	}
+
+
+
+	/**
+	 * Marks stderr as merged into stdout.
+	 */
+	static class MergedOutputStream extends MagicOutputStream {}
 }
@@ -0,0 +1,284 @@
+/*
+ * This file is part of josh <https://github.com/polydawn/josh/>.
+ *
+ * josh is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.polydawn.josh;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Publishes a command's stdout or stderr as a reactive stream of byte chunks. Give it
+ * to {@link Opts#out(OutputStream)} or {@link Opts#err(OutputStream)}, subscribe, and
+ * start the command (in whatever order you like).
+ * <p>
+ * Reads from the pipe only happen while the subscriber has outstanding demand, on a
+ * task on the command's executor that goes away again as soon as demand runs out. A
+ * subscriber that stops requesting leaves the pipe full and the command blocked on
+ * its own write, which is exactly the point; it also means a publisher that's never
+ * subscribed to keeps its command from ever finishing.
+ * <p>
+ * Every chunk is a fresh buffer the subscriber may keep. Only one subscriber is
+ * allowed. Cancelling closes the pipe. {@link #lines()} frames the same stream as
+ * lines.
+ * <p>
+ * This isn't really an OutputStream; it just rides along in the same slot in Opts.
+ * Writing to it is an error.
+ */
+public class OutputPublisher extends OutputStream implements Flow.Publisher<ByteBuffer> {
+	private volatile Flow.Subscriber<? super ByteBuffer> subscriber;
+	private volatile Josh josh; // for reporting errors to its listener
+	private volatile InputStream in;
+	private volatile Executor executor;
+	private final CompletableFuture<Void> done = new CompletableFuture<Void>();
+
+	private final AtomicBoolean subscribed = new AtomicBoolean();
+	private final AtomicLong demand = new AtomicLong();
+	private final AtomicInteger wip = new AtomicInteger();
+	private volatile boolean cancelled;
+	private volatile Throwable failure;
+	private boolean terminated; // only touched inside drain, which wip serializes
+
+	public void subscribe(Flow.Subscriber<? super ByteBuffer> newSubscriber) {
+		if (!subscribed.compareAndSet(false, true)) {
+			newSubscriber.onSubscribe(new Flow.Subscription() {
+				public void request(long n) {}
+				public void cancel() {}
+			});
+			newSubscriber.onError(new IllegalStateException("an OutputPublisher only takes one subscriber"));
+			return;
+		}
+		subscriber = newSubscriber;
+		newSubscriber.onSubscribe(new Flow.Subscription() {
+			public void request(long n) {
+				if (n <= 0) {
+					cancelled = true;
+					failure = new IllegalArgumentException("request must be positive (reactive streams rule 3.9)");
+				} else {
+					long current, next;
+					do {
+						current = demand.get();
+						next = current + n < 0 ? Long.MAX_VALUE : current + n;
+					} while (!demand.compareAndSet(current, next));
+				}
+				signal();
+			}
+
+			public void cancel() {
+				cancelled = true;
+				signal();
+			}
+		});
+		signal();
+	}
+
+	/**
+	 * Called by Josh once the process is started.
+	 *
+	 * @return a future that completes when the pipe has been read to the end (or
+	 *         abandoned).
+	 */
+	CompletableFuture<Void> attach(Josh newJosh, InputStream newIn, Executor newExecutor) {
+		if (in != null)
+			throw new IllegalStateException("an OutputPublisher can only be used for one stream of one command");
+		josh = newJosh;
+		executor = newExecutor;
+		in = newIn;
+		signal();
+		return done;
+	}
+
+	/**
+	 * Line framing of the same stream, split the same way as
+	 * {@link Opts.OutputStringer} does it (line breaks are kept). Subscribe to this
+	 * <i>instead</i> of to the publisher itself.
+	 */
+	public Flow.Publisher<String> lines() {
+		return new Flow.Publisher<String>() {
+			public void subscribe(Flow.Subscriber<? super String> downstream) {
+				OutputPublisher.this.subscribe(new LineFramer(downstream));
+			}
+		};
+	}
+
+	private void signal() {
+		if (in == null || subscriber == null)
+			return; // attach or subscribe will call us again.
+		if (wip.getAndIncrement() == 0)
+			executor.execute(drain);
+	}
+
+	private final Runnable drain = new Runnable() {
+		public void run() {
+			int missed = 1;
+			do {
+				if (!terminated)
+					pump();
+				missed = wip.addAndGet(-missed);
+			} while (missed != 0);
+		}
+	};
+
+	private void pump() {
+		if (cancelled) {
+			terminated = true;
+			closeQuietly();
+			if (failure != null)
+				subscriber.onError(failure);
+			done.complete(null);
+			return;
+		}
+		byte[] buf = null;
+		try {
+			while (demand.get() > 0 && !cancelled) {
+				if (buf == null)
+					buf = BufferPool.acquire(BufferPool.min);
+				int k = in.read(buf);
+				if (k == -1) {
+					terminated = true;
+					subscriber.onComplete();
+					done.complete(null);
+					return;
+				}
+				demand.decrementAndGet();
+				subscriber.onNext(ByteBuffer.wrap(Arrays.copyOf(buf, k)));
+			}
+		} catch (IOException e) {
+			terminated = true;
+			closeQuietly();
+			subscriber.onError(e);
+			done.complete(null);
+		} finally {
+			BufferPool.release(buf);
+		}
+		if (cancelled && !terminated)
+			pump();
+	}
+
+	private void closeQuietly() {
+		try {
+			in.close();
+		} catch (IOException e) {
+			josh.copierError(e);
+		}
+	}
+
+	public void write(int b) throws IOException {
+		throw new IOException("an OutputPublisher reads the process's pipe itself; it can't be written to");
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException {
+		throw new IOException("an OutputPublisher reads the process's pipe itself; it can't be written to");
+	}
+
+
+
+	/**
+	 * Turns demand for lines into demand for chunks, one chunk at a time, only when
+	 * there aren't enough lines already split out to satisfy it.
+	 */
+	private static class LineFramer implements Flow.Subscriber<ByteBuffer>, Flow.Subscription {
+		LineFramer(Flow.Subscriber<? super String> downstream) {
+			this.downstream = downstream;
+		}
+
+		private final Flow.Subscriber<? super String> downstream;
+		private Flow.Subscription upstream;
+		private final Deque<String> lines = new ArrayDeque<String>();
+		private final Opts.OutputStringer stringer = new Opts.OutputStringer(lines);
+		private long demand;
+		private boolean requested, upstreamDone, emitting, finished;
+		private Throwable error;
+
+		public void onSubscribe(Flow.Subscription subscription) {
+			synchronized (this) {
+				upstream = subscription;
+			}
+			downstream.onSubscribe(this);
+		}
+
+		public synchronized void request(long n) {
+			if (n <= 0) {
+				upstream.request(n); // let them complain about it
+				return;
+			}
+			demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+			emit();
+		}
+
+		public synchronized void cancel() {
+			finished = true;
+			upstream.cancel();
+		}
+
+		public synchronized void onNext(ByteBuffer chunk) {
+			requested = false;
+			try {
+				stringer.write(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining());
+			} catch (IOException e) {
+				throw new Error(e); // only a BlockingQueue sink can make this throw
+			}
+			emit();
+		}
+
+		public synchronized void onError(Throwable t) {
+			upstreamDone = true;
+			error = t;
+			emit();
+		}
+
+		public synchronized void onComplete() {
+			upstreamDone = true;
+			try {
+				stringer.close();
+			} catch (IOException e) {
+				throw new Error(e);
+			}
+			emit();
+		}
+
+		private void emit() {
+			if (emitting)
+				return; // someone further up our stack is already on it
+			emitting = true;
+			try {
+				while (!finished) {
+					if (demand > 0 && !lines.isEmpty()) {
+						demand--;
+						downstream.onNext(lines.poll());
+					} else if (lines.isEmpty() && upstreamDone) {
+						finished = true;
+						if (error != null)
+							downstream.onError(error);
+						else
+							downstream.onComplete();
+					} else {
+						if (demand > 0 && !requested && !upstreamDone) {
+							requested = true;
+							upstream.request(1);
+						}
+						return;
+					}
+				}
+			} finally {
+				emitting = false;
+			}
+		}
+	}
+}
@@ -0,0 +1,101 @@
+/*
+ * This file is part of josh <https://github.com/polydawn/josh/>.
+ *
+ * josh is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.polydawn.josh;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/**
+ * A chain of commands with each one's stdout piped into the next one's stdin, like
+ * {@code tar c . | zstd | sha256sum}. Made by {@link Josh#pipe(Josh)}.
+ * <p>
+ * The stages are wired together with OS pipes ({@link ProcessBuilder#startPipeline}),
+ * so the bytes flowing between them go kernel to kernel and never touch the heap.
+ * The first stage's in and the last stage's out are handled according to their
+ * opts like usual; every stage's err is handled according to its own opts.
+ * <p>
+ * Immutable, same as Josh.
+ */
+public class Pipeline {
+	Pipeline(List<Josh> stages) {
+		this.stages = Collections.unmodifiableList(stages);
+	}
+
+	private final List<Josh> stages;
+
+	public Pipeline pipe(Josh next) {
+		List<Josh> stagesNext = new ArrayList<Josh>(stages.size()+1);
+		stagesNext.addAll(stages);
+		stagesNext.add(next);
+		return new Pipeline(stagesNext);
+	}
+
+	public List<Josh> stages() {
+		return stages;
+	}
+
+	/**
+	 * Launches every stage.
+	 * <p>
+	 * The returned future completes with the exit code of each stage, in order, once
+	 * all of them have exited. If any stage exits with a code that isn't ok for that
+	 * stage, the future fails with that stage's {@link ExecutionException} instead
+	 * (think {@code set -o pipefail}). Remember that a stage whose reader quits early
+	 * (say, {@code head}) may well die of SIGPIPE; give it an {@code okExit} that
+	 * tolerates that if you expect it.
+	 * <p>
+	 * Each stage's own timeout applies to that stage. Cancelling the returned future
+	 * kills every stage that's still running.
+	 */
+	public CompletableFuture<List<Integer>> start() throws IOException {
+		int last = stages.size()-1;
+		List<ProcessBuilder> builders = new ArrayList<ProcessBuilder>(stages.size());
+		for (int i = 0; i <= last; i++) {
+			ProcessBuilder bother = stages.get(i).builder();
+			if (i > 0)    bother.redirectInput(ProcessBuilder.Redirect.PIPE);
+			if (i < last) bother.redirectOutput(ProcessBuilder.Redirect.PIPE);
+			builders.add(bother);
+		}
+		long launchStart = System.nanoTime();
+		List<Process> procs = ProcessBuilder.startPipeline(builders);
+
+		final List<CompletableFuture<ExecutionResult>> exits = new ArrayList<CompletableFuture<ExecutionResult>>(stages.size());
+		for (int i = 0; i <= last; i++)
+			exits.add(stages.get(i).supervise(procs.get(i), launchStart, i == 0, i == last));
+
+		CompletableFuture<List<Integer>> result = CompletableFuture.allOf(exits.toArray(new CompletableFuture<?>[exits.size()])).thenApply(new Function<Void,List<Integer>>() {
+			public List<Integer> apply(Void done) {
+				List<Integer> codes = new ArrayList<Integer>(exits.size());
+				for (CompletableFuture<ExecutionResult> exit : exits)
+					codes.add(exit.join().exitCode());
+				return Collections.unmodifiableList(codes);
+			}
+		});
+		// cancelling the whole pipeline cancels (and so kills) every stage.
+		result.whenComplete(new BiConsumer<List<Integer>,Throwable>() {
+			public void accept(List<Integer> codes, Throwable t) {
+				if (t != null)
+					for (CompletableFuture<ExecutionResult> exit : exits)
+						exit.cancel(true);
+			}
+		});
+		return result;
+	}
+}
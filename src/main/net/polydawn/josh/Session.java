@@ -0,0 +1,338 @@
+/*
+ * This file is part of josh <https://github.com/polydawn/josh/>.
+ *
+ * josh is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.polydawn.josh;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+/**
+ * A long-lived coprocess that answers requests over its stdin and stdout, like
+ * {@code git cat-file --batch}, {@code bc}, or a shell in a read-eval loop. Made by
+ * {@link Josh#session(Framing)}. Thousands of requests to a session cost thousands
+ * of pipe writes instead of thousands of fork/execs.
+ * <p>
+ * A {@link Framing} says how to write a request and where one response ends and the
+ * next begins. The process must answer requests in the order it got them (every such
+ * tool does), and that's how responses are matched up to requests: first in, first
+ * out. Requests may be made from any number of threads at once; writes are serialized,
+ * and one reader task on the Josh's executor reads responses and completes the
+ * futures, in order.
+ * <p>
+ * Closing the session closes the process's stdin. Requests already sent still get
+ * their answers; the process is expected to exit on its own after that, and
+ * {@link #exit()} says how that went. If the process's output ends while requests are
+ * still waiting, they fail with an {@link IOException}.
+ * <p>
+ * For more throughput than one process can manage, see {@link Pool}.
+ */
+public class Session<T> implements Closeable {
+	/**
+	 * Delimits requests and responses on a session's pipes.
+	 */
+	public static interface Framing<T> {
+		/**
+		 * Writes one request. The stream is flushed afterwards for you.
+		 */
+		void write(String request, OutputStream out) throws IOException;
+
+		/**
+		 * Reads exactly one response.
+		 *
+		 * @return the response, or null if the stream ended cleanly before any of it.
+		 */
+		T read(InputStream in) throws IOException;
+	}
+
+	/**
+	 * One line per request, one line per response (line breaks not included).
+	 */
+	public static Framing<String> lines() {
+		return new Framing<String>() {
+			public void write(String request, OutputStream out) throws IOException {
+				writeLine(request, out);
+			}
+
+			public String read(InputStream in) throws IOException {
+				return readLine(in);
+			}
+		};
+	}
+
+	/**
+	 * One line per request; responses are however many lines come before a line equal
+	 * to {@code terminator} (which isn't included). Handy for a shell in a loop like
+	 * {@code while read -r l; do eval "$l"; echo --end--; done}.
+	 */
+	public static Framing<List<String>> untilLine(final String terminator) {
+		return new Framing<List<String>>() {
+			public void write(String request, OutputStream out) throws IOException {
+				writeLine(request, out);
+			}
+
+			public List<String> read(InputStream in) throws IOException {
+				List<String> response = new ArrayList<String>();
+				while (true) {
+					String line = readLine(in);
+					if (line == null) {
+						if (response.isEmpty())
+							return null;
+						throw new EOFException("session output ended in the middle of a response");
+					}
+					if (line.equals(terminator))
+						return response;
+					response.add(line);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Writes {@code line} and a line break, as UTF-8.
+	 */
+	public static void writeLine(String line, OutputStream out) throws IOException {
+		out.write(line.getBytes(StandardCharsets.UTF_8));
+		out.write('\n');
+	}
+
+	/**
+	 * Reads up to the next line break, and decodes it as UTF-8. (Framings are always
+	 * handed a buffered stream, so going a byte at a time here is fine.)
+	 *
+	 * @return the line without its line break, or null if the stream was already at
+	 *         its end.
+	 */
+	public static String readLine(InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+		int b;
+		while ((b = in.read()) != '\n') {
+			if (b == -1) {
+				if (line.size() == 0)
+					return null;
+				break;
+			}
+			line.write(b);
+		}
+		return new String(line.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+
+
+	Session(Josh josh, Framing<T> framing) throws IOException {
+		this.josh = josh;
+		this.framing = framing;
+		ProcessBuilder bother = josh.builder();
+		bother.redirectInput(ProcessBuilder.Redirect.PIPE);
+		bother.redirectOutput(ProcessBuilder.Redirect.PIPE);
+		long launchStart = System.nanoTime();
+		proc = josh.launch(bother);
+		exit = Josh.exitCode(josh.supervise(proc, launchStart, false, false));
+		requests = new BufferedOutputStream(proc.getOutputStream(), 1024*8);
+		responses = new BufferedInputStream(proc.getInputStream(), 1024*64);
+		josh.executor().execute(new Runnable() {
+			public void run() {
+				readResponses();
+			}
+		});
+	}
+
+	private final Josh josh;
+	private final Framing<T> framing;
+	private final Process proc;
+	private final CompletableFuture<Integer> exit;
+	private final OutputStream requests; // guarded by writing
+	private final InputStream responses; // only touched by the reader
+
+	/**
+	 * Held while writing a request (and queueing its future, so the queue stays in
+	 * the same order as the pipe). The reader never takes it: a writer can block on a
+	 * full pipe for as long as the process is busy writing responses, and the reader
+	 * had better be free to go read them.
+	 */
+	private final Object writing = new Object();
+	private final Queue<CompletableFuture<T>> pending = new ConcurrentLinkedQueue<CompletableFuture<T>>();
+	private final AtomicInteger backlog = new AtomicInteger();
+	private volatile boolean closed;
+	private volatile IOException broken;
+
+	/**
+	 * Sends a request.
+	 *
+	 * @return a future for the response. It fails with an {@link IOException} if the
+	 *         request couldn't be written or the process's output ended before the
+	 *         response came back.
+	 */
+	public CompletableFuture<T> request(String request) {
+		CompletableFuture<T> response = new CompletableFuture<T>();
+		synchronized (writing) {
+			if (closed) {
+				response.completeExceptionally(new IOException("session is closed"));
+				return response;
+			}
+			backlog.incrementAndGet();
+			pending.add(response);
+			if (broken != null) {
+				fail(broken); // whoever broke it may have swept the queue before we got in
+				return response;
+			}
+			try {
+				framing.write(request, requests);
+				requests.flush();
+			} catch (IOException e) {
+				// the pipe's gone.  the reader will find out shortly too; make sure everyone hears about it.
+				fail(e);
+			}
+		}
+		return response;
+	}
+
+	/**
+	 * @return how many requests are waiting on a response.
+	 */
+	public int backlog() {
+		return backlog.get();
+	}
+
+	/**
+	 * @return the process's exit, which will have been checked against the Josh's
+	 *         okExit as usual.
+	 */
+	public CompletableFuture<Integer> exit() {
+		return exit;
+	}
+
+	public Process process() {
+		return proc;
+	}
+
+	/**
+	 * Closes the process's stdin. Doesn't wait for anything (except for a request
+	 * that's in the middle of being written).
+	 */
+	public void close() throws IOException {
+		synchronized (writing) {
+			if (closed)
+				return;
+			closed = true;
+			requests.close();
+		}
+	}
+
+	private void readResponses() {
+		try {
+			while (true) {
+				T response = framing.read(responses);
+				if (response == null) {
+					fail(new EOFException("session process ended its output"));
+					return;
+				}
+				CompletableFuture<T> waiting = pending.poll();
+				if (waiting == null) {
+					fail(new IOException("session process sent a response nobody asked for"));
+					return;
+				}
+				backlog.decrementAndGet();
+				waiting.complete(response);
+			}
+		} catch (IOException e) {
+			fail(e);
+		} catch (RuntimeException e) {
+			fail(new IOException("framing failed to read a response", e));
+		} finally {
+			try {
+				responses.close();
+			} catch (IOException e) {
+				josh.copierError(e);
+			}
+		}
+	}
+
+	private void fail(IOException e) {
+		if (broken == null)
+			broken = e;
+		CompletableFuture<T> doomed;
+		while ((doomed = pending.poll()) != null) {
+			backlog.decrementAndGet();
+			doomed.completeExceptionally(e);
+		}
+	}
+
+
+
+	/**
+	 * Several sessions running the same command, with each request going to whichever
+	 * has the fewest requests waiting. Made by {@link Josh#sessions(Framing, int)}.
+	 * There's no correlation across sessions, so only use this for requests that
+	 * don't care which process answers them.
+	 */
+	public static class Pool<T> implements Closeable {
+		Pool(Josh josh, Framing<T> framing, int size) throws IOException {
+			if (size < 1)
+				throw new IllegalArgumentException("pool size must be at least 1");
+			List<Session<T>> sessionsNext = new ArrayList<Session<T>>(size);
+			try {
+				for (int i = 0; i < size; i++)
+					sessionsNext.add(new Session<T>(josh, framing));
+			} catch (IOException e) {
+				for (Session<T> session : sessionsNext)
+					session.close();
+				throw e;
+			}
+			sessions = Collections.unmodifiableList(sessionsNext);
+		}
+
+		private final List<Session<T>> sessions;
+
+		public CompletableFuture<T> request(String request) {
+			Session<T> least = sessions.get(0);
+			int leastBacklog = least.backlog();
+			for (int i = 1; i < sessions.size() && leastBacklog > 0; i++) {
+				Session<T> session = sessions.get(i);
+				int backlog = session.backlog();
+				if (backlog < leastBacklog) {
+					least = session;
+					leastBacklog = backlog;
+				}
+			}
+			return least.request(request);
+		}
+
+		public List<Session<T>> sessions() {
+			return sessions;
+		}
+
+		/**
+		 * Closes every session. Doesn't wait for anything.
+		 */
+		public void close() throws IOException {
+			IOException first = null;
+			for (Session<T> session : sessions)
+				try {
+					session.close();
+				} catch (IOException e) {
+					if (first == null)
+						first = e;
+				}
+			if (first != null)
+				throw first;
+		}
+	}
+}
@@ -1,8 +1,36 @@
 package net.polydawn.josh;
 
 import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
 import java.util.*;
+import java.util.concurrent.*;
 
+/**
+ * Changes the working directory for the duration of a try-with-resources block.
+ * <p>
+ * The directory is tracked per thread: every {@link Josh} launched from this thread
+ * while the block is open (and that doesn't have a {@link Josh#cwd(File) cwd} of its
+ * own) runs there, and other threads are unaffected, so several threads can each be
+ * in their own WithCwd at once. Close it on the thread that opened it.
+ * <p>
+ * For the sake of code that resolves plain relative {@link File}s, the JVM-wide
+ * {@code user.dir} property gets set too, like it always did. That part is a
+ * global, and with several threads in WithCwd at once it's just whichever went last
+ * (it's put back how it was once they've all closed). Set the
+ * {@code net.polydawn.josh.globalCwd} system property to false to leave
+ * {@code user.dir} alone entirely.
+ * <p>
+ * Launches that aren't made on the thread itself are another matter. Work chained
+ * onto a {@link Josh#start()} with {@code thenApply}, {@code thenCompose} and the
+ * like gets run with the launching thread's WithCwd put back in place around it, so
+ * a follow-on launch from in there still lands in the right directory. The
+ * {@code *Async} variants, and anything handed off to an executor or thread of your
+ * own, don't get that treatment: they see whatever that thread is in, which is
+ * usually nothing. If a template's going to be launched from somewhere like that,
+ * pin its directory up front with {@code josh.cwd(WithCwd.current())} while you're
+ * still in the block.
+ */
 public class WithCwd implements AutoCloseable {
 	public WithCwd(String relPath) {
 		this(new File(relPath), false);
@@ -18,12 +46,77 @@ public class WithCwd implements AutoCloseable {
 
 	public WithCwd(File relPath, boolean deleteOnClose) {
 		this.deleteOnClose = deleteOnClose;
-		popDir = new File(System.getProperties().getProperty("user.dir"));
-		pushedDir = relPath.isAbsolute() ? relPath : new File(popDir, relPath.toString());
+		popDir = current.get();
+		pushedDir = resolve(relPath);
 		pushedDir.mkdirs();
-		cd(pushedDir);
+		current.set(pushedDir);
+		if (global) {
+			synchronized (globalLock) {
+				if (globalDepth++ == 0)
+					globalOriginal = System.getProperty("user.dir");
+				System.getProperties().setProperty("user.dir", pushedDir.toString());
+			}
+		}
 	}
 
+	/**
+	 * @return the directory of the innermost WithCwd open on this thread, or null if
+	 *         there isn't one (in which case it's {@code user.dir}, as it was
+	 *         before any WithCwd was opened).
+	 */
+	public static File current() {
+		return current.get();
+	}
+
+	/**
+	 * Makes a relative path absolute against this thread's cwd.
+	 */
+	static File resolve(File f) {
+		if (f.isAbsolute())
+			return f;
+		File base = current.get();
+		return new File(base != null ? base : new File(baseDir()), f.getPath());
+	}
+
+	/**
+	 * The cwd for a thread that isn't in a WithCwd: {@code user.dir}, as it was before
+	 * anyone opened one.  The live property is whatever some other thread's WithCwd
+	 * last set it to, so we don't look at it while any are open.
+	 */
+	static String baseDir() {
+		synchronized (globalLock) {
+			return globalDepth > 0 ? globalOriginal : System.getProperty("user.dir");
+		}
+	}
+
+	/**
+	 * Runs {@code body} with this thread's cwd temporarily set to {@code dir} (null for
+	 * none), and puts back whatever it was after.  Just the per-thread part; user.dir
+	 * is left alone.
+	 */
+	static void in(File dir, Runnable body) {
+		File was = current.get();
+		if (dir != null)
+			current.set(dir);
+		else
+			current.remove();
+		try {
+			body.run();
+		} finally {
+			if (was != null)
+				current.set(was);
+			else
+				current.remove();
+		}
+	}
+
+	private static final ThreadLocal<File> current = new ThreadLocal<File>();
+
+	private static final boolean global = !System.getProperty("net.polydawn.josh.globalCwd", "true").equals("false");
+	private static final Object globalLock = new Object();
+	private static int globalDepth; // guarded by globalLock
+	private static String globalOriginal; // guarded by globalLock
+
 
 	/**
 	 * Creates a random temporary directory under {@link #tmp}, by the same mechanisms
@@ -58,7 +151,7 @@ public class WithCwd implements AutoCloseable {
 	public static WithCwd temp(File basedir, String prefix, boolean deleteOnClose) {
 		try {
 			while (true) {
-				File f = new File(basedir, prefix+UUID.randomUUID().toString()).getCanonicalFile();
+				File f = new File(resolve(basedir), prefix+UUID.randomUUID().toString()).getCanonicalFile();
 				if (f.mkdirs()) {
 					tmpdirs.add(f);
 					return new WithCwd(f, deleteOnClose);
@@ -71,31 +164,53 @@ public class WithCwd implements AutoCloseable {
 
 
 	public static final File tmp = new File(System.getProperty("java.io.tmpdir"));
-	private static final List<File> tmpdirs = new ArrayList<File>();
+	private static final Set<File> tmpdirs = ConcurrentHashMap.newKeySet();
 	private static final boolean keep = !System.getProperty("keep-tmpdir", "false").equals("false");
 	static {
 		Runtime.getRuntime().addShutdownHook(new Thread() {
 			public void run() {
-				System.gc();
-				Iterator<File> itr = tmpdirs.iterator();
-				while (itr.hasNext()) {
-					delete(itr.next());
-					itr.remove();
-				}
+				List<ForkJoinTask<Void>> deletions = new ArrayList<ForkJoinTask<Void>>();
+				if (!keep)
+					for (File f : tmpdirs)
+						deletions.add(deleters.submit(new Deletion(f.toPath())));
+				tmpdirs.clear();
+				for (ForkJoinTask<Void> deletion : deletions)
+					deletion.join();
+				for (ForkJoinTask<Void> deletion : pending)
+					deletion.join();
 			}
 		});
 	}
 
+	/**
+	 * Does the deleting.  Worker threads are daemons and go away when idle, so this
+	 * costs nothing until something needs deleting.
+	 */
+	private static final ForkJoinPool deleters = new ForkJoinPool(Math.max(2, Runtime.getRuntime().availableProcessors()));
+
+	/** Deletions still in the background; the shutdown hook waits for these. */
+	private static final Set<ForkJoinTask<Void>> pending = ConcurrentHashMap.newKeySet();
+
 	final File pushedDir;
-	final File popDir;
+	final File popDir; // null if this thread wasn't in a WithCwd
 	final boolean deleteOnClose;
-
-	private void cd(File dir) {
-		System.getProperties().setProperty("user.dir", dir.toString());
-	}
+	private boolean closed;
 
 	public void close() {
-		cd(popDir);
+		if (closed) return;
+		closed = true;
+		if (popDir != null)
+			current.set(popDir);
+		else
+			current.remove();
+		if (global) {
+			synchronized (globalLock) {
+				if (--globalDepth == 0)
+					System.getProperties().setProperty("user.dir", globalOriginal);
+				else
+					System.getProperties().setProperty("user.dir", popDir != null ? popDir.toString() : globalOriginal);
+			}
+		}
 		if (deleteOnClose) delete(pushedDir);
 	}
 
@@ -104,15 +219,83 @@ public class WithCwd implements AutoCloseable {
 		delete(pushedDir);
 	}
 
+	/**
+	 * Gets {@code f} out of the way right now, by renaming it to a hidden tombstone
+	 * next to itself, and leaves actually deleting it to the background.  So close()
+	 * returns immediately however many files there are, and the path is free for
+	 * reuse as soon as it does.  If the rename doesn't work out, we just delete it
+	 * here and now.
+	 */
 	private static void delete(File f) {
-		if (!keep) deleter(f);
+		tmpdirs.remove(f);
+		if (keep) return;
+		Path path = f.toPath();
+		Path tombstone = path.resolveSibling("."+path.getFileName()+".deleting-"+UUID.randomUUID());
+		try {
+			Files.move(path, tombstone, StandardCopyOption.ATOMIC_MOVE);
+		} catch (NoSuchFileException e) {
+			return;
+		} catch (IOException e) {
+			deleters.invoke(new Deletion(path));
+			return;
+		}
+		ForkJoinTask<Void> deletion = new Deletion(tombstone) {
+			protected void compute() {
+				try {
+					super.compute();
+				} finally {
+					pending.remove(this);
+				}
+			}
+		};
+		pending.add(deletion);
+		deleters.execute(deletion);
 	}
 
-	private static boolean deleter(File f) {
-		File[] fs = f.listFiles();
-		if (fs != null)
-			for (File g : fs)
-				deleter(g);
-		return f.delete();
+	/**
+	 * Deletes a file, or a directory and everything in it, best effort.  Subdirectories
+	 * are forked off as tasks of their own, so wide trees get deleted on every core.
+	 * Symlinks are deleted, never followed.
+	 */
+	private static class Deletion extends RecursiveAction {
+		Deletion(Path path) {
+			this.path = path;
+		}
+
+		private final Path path;
+
+		protected void compute() {
+			BasicFileAttributes attrs;
+			try {
+				attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+			} catch (IOException e) {
+				return; // already gone, most likely
+			}
+			if (attrs.isDirectory()) {
+				List<Deletion> subdirs = new ArrayList<Deletion>();
+				try (DirectoryStream<Path> entries = Files.newDirectoryStream(path)) {
+					for (Path entry : entries) {
+						if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+							Deletion subdir = new Deletion(entry);
+							subdir.fork();
+							subdirs.add(subdir);
+						} else {
+							try {
+								Files.delete(entry);
+							} catch (IOException e) {}
+						}
+					}
+				} catch (IOException | DirectoryIteratorException e) {
+					// fall through; whatever we did get to still gets waited for, and the rmdir will fail if it has to.
+				}
+				for (Deletion subdir : subdirs)
+					subdir.join();
+			}
+			try {
+				Files.delete(path);
+			} catch (IOException e) {}
+		}
+
+		private static final long serialVersionUID = 1L;
 	}
 }
@@ -0,0 +1,28 @@
+package net.polydawn.josh;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A command that blows up at launch with something unchecked (here, a null arg) has
+ * to show up as that command's failure, and the rest of the batch has to carry on.
+ * It used to escape into a completion callback and leave the batch pending forever.
+ */
+public class BatchLaunchFailureTest {
+	public static void main(String... args) throws Exception {
+		List<Josh> cmds = Arrays.asList(
+			new Josh("sleep").args("0.2").opts(Opts.NullIO),
+			new Josh("echo").args((String) null).opts(Opts.NullIO),
+			new Josh("true").opts(Opts.NullIO)
+		);
+		List<Batch.Result> results = Josh.runAll(cmds, 1).get(5, TimeUnit.SECONDS);
+		if (!results.get(0).ok())
+			throw new AssertionError("first command should have been fine: "+results.get(0).failure());
+		if (!(results.get(1).failure() instanceof NullPointerException))
+			throw new AssertionError("second command should have failed with its NPE, got "+results.get(1).failure());
+		if (!results.get(2).ok())
+			throw new AssertionError("third command should have run anyway: "+results.get(2).failure());
+		System.out.println("ok");
+		System.exit(0);
+	}
+}
@@ -0,0 +1,54 @@
+package net.polydawn.josh;
+
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+/**
+ * Cancelling the future from {@link Josh#start()} (or a session's
+ * {@link Session#exit()}) has to kill the process, same as cancelling
+ * {@link Josh#execute()} does, even though they're derived from it.
+ */
+public class CancelKillsTest {
+	public static void main(String... args) throws Exception {
+		Josh sleep = new Josh("sleep").args("31").opts(Opts.NullIO).killGrace(Duration.ofMillis(100));
+
+		CompletableFuture<Integer> started = sleep.start();
+		ProcessHandle child = onlyChild();
+		started.cancel(true);
+		expectDead(child, "start()");
+
+		CompletableFuture<ExecutionResult> executed = sleep.execute();
+		child = onlyChild();
+		executed.cancel(true);
+		expectDead(child, "execute()");
+
+		Session<String> session = new Josh("sleep").args("31").killGrace(Duration.ofMillis(100)).session(Session.lines());
+		child = onlyChild();
+		session.exit().cancel(true);
+		expectDead(child, "Session.exit()");
+
+		System.out.println("ok");
+		System.exit(0);
+	}
+
+	private static ProcessHandle onlyChild() {
+		List<ProcessHandle> kids = new ArrayList<ProcessHandle>();
+		for (ProcessHandle kid : ProcessHandle.current().children().collect(Collectors.toList()))
+			if (kid.isAlive())
+				kids.add(kid);
+		if (kids.size() != 1)
+			throw new AssertionError("expected one child, found "+kids);
+		return kids.get(0);
+	}
+
+	private static void expectDead(ProcessHandle child, String what) throws Exception {
+		try {
+			child.onExit().get(5, TimeUnit.SECONDS);
+		} catch (TimeoutException e) {
+			child.destroyForcibly();
+			throw new AssertionError("cancelling "+what+" left the process running");
+		}
+	}
+}
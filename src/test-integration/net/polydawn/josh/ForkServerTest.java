@@ -0,0 +1,72 @@
+package net.polydawn.josh;
+
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+/**
+ * Runs things through a {@link ForkServer} every way they can be run: plain copiers
+ * (in both directions), a reactor, {@link Josh#lines()}, a session, a command that
+ * doesn't exist, and one that has to be killed for taking too long.
+ */
+public class ForkServerTest {
+	public static void main(String... args) {
+		try {
+			really();
+		} catch (Throwable e) {
+			e.printStackTrace();
+			System.exit(3);
+		}
+		System.out.println("ok");
+		System.exit(0);
+	}
+
+	public static void really() throws Exception {
+		try (ForkServer fs = new ForkServer()) {
+			List<String> out = new ArrayList<String>();
+			List<String> err = new ArrayList<String>();
+			new Josh("sh").args("-c", "echo \"out $1\"; echo err >&2", "-", "it's \"quoted\" $HOME").forkserver(fs).opts(new Opts().in_null().out(out).err(err)).start().get(5, TimeUnit.SECONDS);
+			expect(out, "out it's \"quoted\" $HOME\n");
+			expect(err, "err\n");
+
+			out.clear();
+			new Josh("cat").forkserver(fs).opts(new Opts().in("piped\nthrough\n").out(out)).start().get(5, TimeUnit.SECONDS);
+			expect(out, "piped\n", "through\n");
+
+			out.clear();
+			new Josh("echo").args("hi").forkserver(fs).reactor(JoshReactor.Default).opts(new Opts().in_null().out(out)).start().get(5, TimeUnit.SECONDS);
+			expect(out, "hi\n");
+
+			try (Stream<String> lines = new Josh("seq").args("3").forkserver(fs).opts(new Opts().in_null()).lines()) {
+				expect(lines.collect(Collectors.toList()), "1\n", "2\n", "3\n");
+			}
+
+			Session<String> session = new Josh("cat").forkserver(fs).session(Session.lines());
+			expect(Arrays.asList(session.request("ping").get(5, TimeUnit.SECONDS), session.request("pong").get(5, TimeUnit.SECONDS)), "ping", "pong");
+			session.close();
+			if (session.exit().get(5, TimeUnit.SECONDS) != 0)
+				throw new AssertionError("session didn't exit cleanly");
+
+			int missing = new Josh("no-such-command-for-josh").forkserver(fs).okExitAny().opts(new Opts().in_null().err_null()).start().get(5, TimeUnit.SECONDS);
+			if (missing != 127)
+				throw new AssertionError("missing command should exit 127, got "+missing);
+
+			long start = System.nanoTime();
+			try {
+				new Josh("sleep").args("30").forkserver(fs).timeout(Duration.ofMillis(200)).killGrace(Duration.ofMillis(100)).opts(new Opts().in_null()).start().get(5, TimeUnit.SECONDS);
+				throw new AssertionError("sleep should have timed out");
+			} catch (ExecutionException e) {
+				if (!(e.getCause() instanceof TimeoutException))
+					throw e;
+			}
+			if (System.nanoTime() - start > TimeUnit.SECONDS.toNanos(3))
+				throw new AssertionError("timeout took too long to fire");
+		}
+	}
+
+	private static void expect(Collection<String> actual, String... expected) {
+		if (!new ArrayList<String>(actual).equals(Arrays.asList(expected)))
+			throw new AssertionError("expected "+Arrays.asList(expected)+", got "+actual);
+	}
+}
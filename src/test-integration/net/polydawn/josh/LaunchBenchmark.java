@@ -0,0 +1,77 @@
+package net.polydawn.josh;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+/**
+ * Measures how long it takes to launch a trivial process, for each launch mechanism
+ * (and via a {@link ForkServer}), from JVMs with heaps of various sizes.
+ * <p>
+ * Each measurement runs in a child JVM, since the launch mechanism can only be picked
+ * once per JVM. Children pre-touch their whole heap so it's actually mapped, which is
+ * what makes fork expensive. Heap sizes can be given as arguments (default 256m 1g 2g);
+ * mind your RAM.
+ */
+public class LaunchBenchmark {
+	static final String[] mechanisms = { "POSIX_SPAWN", "VFORK", "FORK", "FORKSERVER" };
+	static final int warmup = 20;
+	static final int rounds = 200;
+
+	public static void main(String... args) {
+		try {
+			if (args.length == 2 && args[0].equals("child"))
+				child(args[1]);
+			else
+				really(args.length > 0 ? args : new String[] { "256m", "1g", "2g" });
+		} catch (Throwable e) {
+			e.printStackTrace();
+			System.exit(3);
+		}
+	}
+
+	public static void really(String... heaps) throws InterruptedException, ExecutionException, IOException {
+		String java = ProcessHandle.current().info().command().orElse("java");
+		String classpath = System.getProperty("java.class.path");
+
+		System.out.printf("launch latency, mean of %d launches of `true`:\n", rounds);
+		System.out.printf("%8s", "heap");
+		for (String mechanism : mechanisms)
+			System.out.printf("%14s", mechanism);
+		System.out.printf("\n");
+
+		for (String heap : heaps) {
+			System.out.printf("%8s", heap);
+			for (String mechanism : mechanisms) {
+				Josh child = new Josh(java).args("-Xms"+heap, "-Xmx"+heap, "-XX:+AlwaysPreTouch", "-cp", classpath, LaunchBenchmark.class.getName(), "child", mechanism).opts(new Opts().in_null());
+				String result;
+				try (Stream<String> lines = child.lines()) {
+					result = lines.collect(Collectors.joining()).trim();
+				} catch (CompletionException e) {
+					result = "failed";
+				}
+				System.out.printf("%14s", result);
+			}
+			System.out.printf("\n");
+		}
+	}
+
+	static void child(String mechanism) throws InterruptedException, ExecutionException, IOException {
+		Josh tru = new Josh("true").opts(Opts.NullIO);
+		ForkServer forkserver = null;
+		if (mechanism.equals("FORKSERVER"))
+			tru = tru.forkserver(forkserver = new ForkServer());
+		else
+			Josh.launchMechanism(mechanism);
+		for (int n = 0; n < warmup; n++)
+			tru.start().get();
+		long start = System.nanoTime();
+		for (int n = 0; n < rounds; n++)
+			tru.start().get();
+		long end = System.nanoTime();
+		System.out.printf("%.0fus\n", (end-start)/1000.0/rounds);
+		if (forkserver != null)
+			forkserver.close();
+	}
+}
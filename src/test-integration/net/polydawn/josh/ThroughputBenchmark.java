@@ -0,0 +1,61 @@
+package net.polydawn.josh;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.concurrent.*;
+
+/**
+ * Pushes a few gigs of output to a file two ways: shuttled through the io copier into
+ * a {@link FileOutputStream}, and handed straight to the child with
+ * {@link Opts#out(Path)}.
+ * <p>
+ * Wall clock mostly measures the disk (and how big the child's writes are); the
+ * number to watch is how much cpu this JVM burned doing it.
+ */
+public class ThroughputBenchmark {
+	public static void main(String... args) {
+		try {
+			really(args.length > 0 ? Long.parseLong(args[0]) : 1024L*1024*1024*4);
+		} catch (Throwable e) {
+			e.printStackTrace();
+			System.exit(3);
+		}
+	}
+
+	public static void really(long size) throws InterruptedException, ExecutionException, IOException {
+		System.out.printf("starting benchmark (%d bytes per run)...\n", size);
+
+		Path dest = Files.createTempFile("josh-throughput", ".bin");
+		Josh gen = new Josh("dd").args("if=/dev/zero", "bs=1M", "count="+(size/(1024*1024)), "status=none").opts(new Opts().in_null());
+		try {
+			for (int n = 0; n < 3; n++) {
+				long start, end, cpu;
+				float seconds;
+
+				try (FileOutputStream fos = new FileOutputStream(dest.toFile())) {
+					cpu = cpu();
+					start = System.currentTimeMillis();
+					gen.opts(new Opts().out(fos)).start().get();
+					end = System.currentTimeMillis();
+					cpu = cpu() - cpu;
+				}
+				seconds = (end-start)/1000f;
+				System.out.printf("through the copier:      %.3fsec (%.0f MB/s), %dms jvm cpu\n", seconds, size/seconds/1e6, cpu);
+
+				cpu = cpu();
+				start = System.currentTimeMillis();
+				gen.opts(new Opts().out(dest)).start().get();
+				end = System.currentTimeMillis();
+				cpu = cpu() - cpu;
+				seconds = (end-start)/1000f;
+				System.out.printf("redirected to the file:  %.3fsec (%.0f MB/s), %dms jvm cpu\n", seconds, size/seconds/1e6, cpu);
+			}
+		} finally {
+			Files.delete(dest);
+		}
+	}
+
+	private static long cpu() {
+		return ProcessHandle.current().info().totalCpuDuration().get().toMillis();
+	}
+}
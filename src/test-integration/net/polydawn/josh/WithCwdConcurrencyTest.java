@@ -0,0 +1,100 @@
+package net.polydawn.josh;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/**
+ * Lots of threads, each in its own {@link WithCwd} (with another nested inside it, and
+ * a {@link Josh#runAll} launching from pool threads, and launches chained onto other
+ * launches), all checking that every process runs where that thread says it should.  Meanwhile the main thread, in no WithCwd at
+ * all, keeps checking that its processes still run where they always did.
+ */
+public class WithCwdConcurrencyTest {
+	public static void main(String... args) {
+		try {
+			really();
+		} catch (Throwable e) {
+			e.printStackTrace();
+			System.exit(3);
+		}
+	}
+
+	public static void really() throws Exception {
+		final String home = new File(System.getProperty("user.dir")).getCanonicalPath();
+		ExecutorService pool = Executors.newFixedThreadPool(16);
+		List<Future<String>> tasks = new ArrayList<Future<String>>();
+		for (int i = 0; i < 64; i++)
+			tasks.add(pool.submit(new Callable<String>() {
+				public String call() throws Exception {
+					try (WithCwd cwd = WithCwd.temp(true)) {
+						String want = WithCwd.current().getCanonicalPath();
+						for (int n = 0; n < 5; n++) {
+							expect(pwd(new Josh("pwd")), want);
+							try (WithCwd inner = new WithCwd("sub")) {
+								expect(pwd(new Josh("pwd")), want+"/sub");
+							}
+							List<String> out = Collections.synchronizedList(new ArrayList<String>()); // two copiers at once
+							Josh.runAll(Arrays.asList(
+								new Josh("pwd").opts(new Opts().in_null().out(out)),
+								new Josh("pwd").cwd(new File("sub")).opts(new Opts().in_null().out(out))
+							), 2).get();
+							Collections.sort(out);
+							expect(out.toString(), Arrays.asList(want+"\n", want+"/sub\n").toString());
+							// the sleep makes sure the chained launch happens off on the reaper, not right here.
+							expect(chained(new Josh("sleep").args("0.05"), new Josh("pwd"), false).get(), want);
+							expect(chained(new Josh("sleep").args("0.05"), new Josh("pwd").cwd(WithCwd.current()), true).get(), want);
+						}
+					}
+					return "ok";
+				}
+			}));
+
+		int outside = 0;
+		while (true) {
+			boolean done = true;
+			for (Future<String> task : tasks)
+				done &= task.isDone();
+			if (done) break;
+			expect(pwd(new Josh("pwd")), home);
+			outside++;
+		}
+		for (Future<String> task : tasks)
+			task.get();
+		pool.shutdown();
+		expect(System.getProperty("user.dir"), home);
+		System.out.printf("ok (%d launches from outside any WithCwd)\n", outside);
+		System.exit(0);
+	}
+
+	private static String pwd(Josh josh) throws Exception {
+		List<String> out = new ArrayList<String>();
+		josh.opts(new Opts().in_null().out(out)).start().get();
+		return out.get(0).trim();
+	}
+
+	private static CompletableFuture<String> chained(Josh first, final Josh then, boolean async) throws Exception {
+		Function<Integer,CompletionStage<String>> next = new Function<Integer,CompletionStage<String>>() {
+			public CompletionStage<String> apply(Integer code) {
+				final List<String> out = new ArrayList<String>();
+				try {
+					return then.opts(new Opts().in_null().out(out)).start().thenApply(new Function<Integer,String>() {
+						public String apply(Integer code) {
+							return out.get(0).trim();
+						}
+					});
+				} catch (IOException e) {
+					throw new CompletionException(e);
+				}
+			}
+		};
+		CompletableFuture<Integer> exit = first.opts(new Opts().in_null()).start();
+		return async ? exit.thenComposeAsync(next) : exit.thenCompose(next);
+	}
+
+	private static void expect(String actual, String expected) {
+		if (!actual.equals(expected))
+			throw new AssertionError("expected \""+expected+"\", got \""+actual+"\"");
+	}
+}